@@ -1,26 +1,25 @@
 package BooleanAND;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 public class BooleanAND {
 
-    private static Map<Integer, List<DocIdCountPair>> invertedIndex;
-    private static Map<Integer, DocumentMetadata> documentMetadata;
-    private static Map<String, Integer> lexicon; 
     private static Map<Integer, String> queries;
     public static void main(String[] args) {
         if (args.length != 3) {
@@ -45,18 +44,14 @@ public class BooleanAND {
             System.exit(1);
         }
 
-        //read the index
-        invertedIndex = loadInvertedIndex(indexDirectory);
-        //read the lexicon
-        lexicon = loadLexicon(indexDirectory);
-        // read all metadata
-        documentMetadata = loadDocumentMetadata(indexDirectory);
+        // read the index, lexicon and metadata
+        IndexReader reader = IndexReader.open(indexDirectory);
         // read all the queries
         queries = loadQueries(queriesFile);
         
         // perform BM25, and print results file
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile))) {
-            List<ResultEntry> results = generateTrecResults("v3suAND");
+            List<ResultEntry> results = generateTrecResults(new Searcher(reader), "v3suAND");
             writeToFile(results, outputFile);
             System.out.println("Finished Retrieval");
         } catch (IOException e) {
@@ -64,20 +59,26 @@ public class BooleanAND {
         }
     }
 
-    private static List<ResultEntry> generateTrecResults(String runTag) {
+    private static List<ResultEntry> generateTrecResults(Searcher searcher, String runTag) {
         List<ResultEntry> results = new ArrayList<>();
 
         for (Map.Entry<Integer, String> entry : queries.entrySet()) {
             int topicID = entry.getKey();
             String query = entry.getValue();
-            Set<Integer> retrievedDocs = performBooleanANDSearch(query);
+            int[] retrievedDocs;
+            try {
+                retrievedDocs = searcher.search(query);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Skipping topic " + topicID + ", invalid query: " + e.getMessage());
+                continue;
+            }
 
-            int numRetrieved = retrievedDocs.size();
+            int numRetrieved = retrievedDocs.length;
 
             // order the rankings
             int rank = 1;
             for (int docId : retrievedDocs) {
-                DocumentMetadata metadata = documentMetadata.get(docId);
+                DocumentMetadata metadata = searcher.getReader().getMetadata(docId);
                 if (metadata != null) {
                     String docNo = metadata.getDocNo();
                     double score = numRetrieved - rank;
@@ -93,46 +94,6 @@ public class BooleanAND {
         return results;
     }
 
-    private static Set<Integer> performBooleanANDSearch(String query) {
-        // Extract the words in the query term
-        List<String> words = splitQueryIntoTokens(query);
-    
-        Set<Integer> resultSet = null;
-    
-        // Logic for Boolean AND
-        for (String word : words) {
-            // Handle the null cases
-            Integer termId = lexicon.get(word);
-            if (termId == null) {
-                return Collections.emptySet();
-            }
-    
-            List<DocIdCountPair> postingsList = invertedIndex.get(termId);
-            if (postingsList == null) {
-                return Collections.emptySet();
-            }
-    
-            Set<Integer> currentDocIds = new HashSet<>();
-            for (DocIdCountPair pair : postingsList) {
-                currentDocIds.add(pair.getDocId());
-            }
-    
-            // If it's the first term, initialize resultSet with currentDocIds
-            if (resultSet == null) {
-                resultSet = new HashSet<>(currentDocIds);
-            } else {
-                resultSet.retainAll(currentDocIds);
-            }
-    
-            if (resultSet.isEmpty()) {
-                return Collections.emptySet();
-            }
-        }
-    
-        return resultSet != null ? resultSet : Collections.emptySet();
-    }
-    
-
     private static void writeToFile(List<ResultEntry> results, String outputFile) {
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile))) {
             for (ResultEntry result : results) {
@@ -161,6 +122,61 @@ public class BooleanAND {
         return queries;
     }
 
+}
+// The lexicon, postings and metadata of an index. Nothing is written after open() returns,
+// so one reader can be shared by any number of threads without locking
+class IndexReader {
+    private final Map<Integer, int[]> invertedIndex;
+    private final Map<Integer, DocumentMetadata> documentMetadata;
+    private final Map<String, Integer> lexicon;
+    private final Map<Integer, RoaringBitmap> bitmaps;
+    private final int[] allDocIds;
+
+    private IndexReader(Map<Integer, int[]> invertedIndex, Map<Integer, DocumentMetadata> documentMetadata, Map<String, Integer> lexicon,
+            Map<Integer, RoaringBitmap> bitmaps) {
+        this.invertedIndex = Collections.unmodifiableMap(invertedIndex);
+        this.documentMetadata = Collections.unmodifiableMap(documentMetadata);
+        this.lexicon = Collections.unmodifiableMap(lexicon);
+        this.bitmaps = Collections.unmodifiableMap(bitmaps);
+        this.allDocIds = documentMetadata.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    public static IndexReader open(String indexDirectory) {
+        //read the index
+        Map<Integer, int[]> invertedIndex = loadInvertedIndex(indexDirectory);
+        //read the lexicon
+        Map<String, Integer> lexicon = loadLexicon(indexDirectory);
+        // read all metadata
+        Map<Integer, DocumentMetadata> documentMetadata = loadDocumentMetadata(indexDirectory);
+        // bitmap copies of the common terms, if the index has them
+        Map<Integer, RoaringBitmap> bitmaps = loadBitmaps(indexDirectory);
+
+        return new IndexReader(invertedIndex, documentMetadata, lexicon, bitmaps);
+    }
+
+    public Integer getTermId(String term) {
+        return lexicon.get(term);
+    }
+
+    // the term's docIds in ascending order, or null when the term has no postings
+    public int[] getPostings(int termId) {
+        return invertedIndex.get(termId);
+    }
+
+    // null unless the index engine also wrote this term as a bitmap
+    public RoaringBitmap getBitmap(int termId) {
+        return bitmaps.get(termId);
+    }
+
+    public DocumentMetadata getMetadata(int docId) {
+        return documentMetadata.get(docId);
+    }
+
+    // every docId in the collection in ascending order, what a query like "NOT x" is taken out of
+    public int[] getAllDocIds() {
+        return allDocIds;
+    }
+
     private static Map<String, Integer> loadLexicon(String indexPath) {
         Map<String, Integer> lexicon = new HashMap<>();
         String lexiconPath = indexPath + "/lexicon/lexicon.txt";
@@ -183,28 +199,40 @@ public class BooleanAND {
     }
 
 
-    private static Map<Integer, List<DocIdCountPair>> loadInvertedIndex(String indexPath) {
-        Map<Integer, List<DocIdCountPair>> index = new HashMap<>();
+    // Boolean retrieval only needs docIds, so each postings list is kept as a sorted int[]
+    // and the counts are dropped at load time
+    private static Map<Integer, int[]> loadInvertedIndex(String indexPath) {
+        Map<Integer, int[]> index = new HashMap<>();
         String invertedIndexPath = indexPath + "/invertedIndex/invertedIndex.txt";
 
         try (BufferedReader reader = new BufferedReader(new FileReader(invertedIndexPath))) {
             String line;
             Integer currentTermId = null;
+            int[] docIds = new int[16];
+            int size = 0;
 
             while ((line = reader.readLine()) != null) {
                 line = line.trim(); 
 
                 if (line.startsWith("Term ID:")) {
+                    if (currentTermId != null) {
+                        index.put(currentTermId, toSortedPostings(docIds, size));
+                    }
                     currentTermId = Integer.parseInt(line.split(":")[1].trim());
-                    index.put(currentTermId, new ArrayList<>());
+                    size = 0;
                 } else if (line.startsWith("DocID:") && currentTermId != null) {
                     String[] parts = line.split(",");
-                    Integer docId = Integer.parseInt(parts[0].split(":")[1].trim());
-                    Integer count = Integer.parseInt(parts[1].split(":")[1].trim());
+                    int docId = Integer.parseInt(parts[0].split(":")[1].trim());
 
-                    index.get(currentTermId).add(new DocIdCountPair(docId, count));
+                    if (size == docIds.length) {
+                        docIds = Arrays.copyOf(docIds, size * 2);
+                    }
+                    docIds[size++] = docId;
                 }
             }
+            if (currentTermId != null) {
+                index.put(currentTermId, toSortedPostings(docIds, size));
+            }
         } catch (IOException e) {
             System.err.println("Error reading inverted index file: " + e.getMessage());
         }
@@ -212,6 +240,40 @@ public class BooleanAND {
         return index;
     }
 
+    // the index engine writes postings in docId order already, only sort if a file breaks that
+    private static int[] toSortedPostings(int[] docIds, int size) {
+        int[] postings = Arrays.copyOf(docIds, size);
+        for (int i = 1; i < size; i++) {
+            if (postings[i] < postings[i - 1]) {
+                Arrays.sort(postings);
+                break;
+            }
+        }
+        return postings;
+    }
+
+    private static Map<Integer, RoaringBitmap> loadBitmaps(String indexPath) {
+        Map<Integer, RoaringBitmap> bitmaps = new HashMap<>();
+        File bitmapsFile = new File(indexPath + "/bitmaps/bitmaps.bin");
+        if (!bitmapsFile.exists()) {
+            return bitmaps;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bitmapsFile)))) {
+            int numTerms = in.readInt();
+            for (int i = 0; i < numTerms; i++) {
+                int termId = in.readInt();
+                bitmaps.put(termId, RoaringBitmap.read(in));
+            }
+        } catch (IOException e) {
+            // the postings lists have everything, so searching still works without bitmaps
+            System.err.println("Error reading bitmaps file: " + e.getMessage());
+            bitmaps.clear();
+        }
+
+        return bitmaps;
+    }
+
     private static Map<Integer, DocumentMetadata> loadDocumentMetadata(String indexPath) {
         Map<Integer, DocumentMetadata> metadataMap = new HashMap<>();
         
@@ -254,6 +316,177 @@ public class BooleanAND {
 
         return metadataMap;
     }
+}
+
+// Runs queries against a shared IndexReader. Use one searcher per thread
+class Searcher {
+    private final IndexReader reader;
+
+    public Searcher(IndexReader reader) {
+        this.reader = reader;
+    }
+
+    public IndexReader getReader() {
+        return reader;
+    }
+
+    // Runs a boolean query (see QueryParser) and returns the matching docIds in ascending order
+    public int[] search(String query) {
+        QueryNode root = QueryParser.parse(query);
+        if (root == null) {
+            return new int[0];
+        }
+
+        DocIdIterator matches = root.compile(reader);
+        int[] docIds = new int[16];
+        int size = 0;
+        for (int docId = matches.nextDoc(); docId != DocIdIterator.NO_MORE_DOCS; docId = matches.nextDoc()) {
+            if (size == docIds.length) {
+                docIds = Arrays.copyOf(docIds, size * 2);
+            }
+            docIds[size++] = docId;
+        }
+        return Arrays.copyOf(docIds, size);
+    }
+}
+
+// Parses queries like: world cup AND (brazil OR "argentina") NOT final
+// Operators are AND, OR and NOT in upper case, with NOT binding tightest and OR loosest.
+// Words next to each other are ANDed, which is how plain queries have always been run.
+// Quoting a word keeps it from being read as an operator. There are no positions in the
+// index, so a quoted phrase means all of its words, not the words in order
+class QueryParser {
+    private final List<String> tokens;
+    private final List<Boolean> quoted;
+    private int pos;
+
+    private QueryParser(String query) {
+        this.tokens = new ArrayList<>();
+        this.quoted = new ArrayList<>();
+        tokenize(query);
+    }
+
+    // null when the query has no searchable words at all
+    public static QueryNode parse(String query) {
+        QueryParser parser = new QueryParser(query);
+        if (parser.tokens.isEmpty()) {
+            return null;
+        }
+
+        QueryNode root = parser.parseOr();
+        if (parser.pos < parser.tokens.size()) {
+            throw new IllegalArgumentException("unexpected '" + parser.tokens.get(parser.pos) + "'");
+        }
+        return root;
+    }
+
+    private void tokenize(String query) {
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(' || c == ')') {
+                addToken(String.valueOf(c), false);
+                i++;
+            } else if (c == '"') {
+                int end = query.indexOf('"', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("missing closing quote");
+                }
+                addToken(query.substring(i + 1, end), true);
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < query.length() && !Character.isWhitespace(query.charAt(i))
+                        && query.charAt(i) != '(' && query.charAt(i) != ')' && query.charAt(i) != '"') {
+                    i++;
+                }
+                addToken(query.substring(start, i), false);
+            }
+        }
+    }
+
+    private void addToken(String token, boolean isQuoted) {
+        tokens.add(token);
+        quoted.add(isQuoted);
+    }
+
+    private boolean atOperator(String operator) {
+        return pos < tokens.size() && !quoted.get(pos) && tokens.get(pos).equals(operator);
+    }
+
+    // or := and (OR and)*
+    private QueryNode parseOr() {
+        List<QueryNode> operands = new ArrayList<>();
+        addOperand(operands, parseAnd());
+        while (atOperator("OR")) {
+            pos++;
+            addOperand(operands, parseAnd());
+        }
+        return combine(operands, false);
+    }
+
+    // and := not ([AND] not)*
+    private QueryNode parseAnd() {
+        List<QueryNode> operands = new ArrayList<>();
+        addOperand(operands, parseNot());
+        while (pos < tokens.size() && !atOperator("OR") && !atOperator(")")) {
+            if (atOperator("AND")) {
+                pos++;
+            }
+            addOperand(operands, parseNot());
+        }
+        return combine(operands, true);
+    }
+
+    // not := NOT not | '(' or ')' | word
+    private QueryNode parseNot() {
+        if (pos >= tokens.size()) {
+            throw new IllegalArgumentException("query ends with an operator");
+        }
+        if (atOperator("NOT")) {
+            pos++;
+            QueryNode operand = parseNot();
+            return operand == null ? null : new NotNode(operand);
+        }
+        if (atOperator("(")) {
+            pos++;
+            QueryNode inner = parseOr();
+            if (!atOperator(")")) {
+                throw new IllegalArgumentException("missing ')'");
+            }
+            pos++;
+            return inner;
+        }
+        if (atOperator(")") || atOperator("AND") || atOperator("OR")) {
+            throw new IllegalArgumentException("unexpected '" + tokens.get(pos) + "'");
+        }
+
+        // a word can split into several terms (e.g. "u.s."), those are all required
+        List<QueryNode> terms = new ArrayList<>();
+        for (String term : splitQueryIntoTokens(tokens.get(pos++))) {
+            terms.add(new TermNode(term));
+        }
+        return combine(terms, true);
+    }
+
+    // words that were all punctuation come back as null and are dropped
+    private static void addOperand(List<QueryNode> operands, QueryNode operand) {
+        if (operand != null) {
+            operands.add(operand);
+        }
+    }
+
+    private static QueryNode combine(List<QueryNode> operands, boolean conjunctive) {
+        if (operands.isEmpty()) {
+            return null;
+        }
+        if (operands.size() == 1) {
+            return operands.get(0);
+        }
+        return conjunctive ? new AndNode(operands) : new OrNode(operands);
+    }
 
     private static List<String> splitQueryIntoTokens(String query) {
         List<String> tokens = new ArrayList<>();
@@ -279,37 +512,890 @@ public class BooleanAND {
 
         return tokens; 
     }
+}
+
+// A parsed query. compile() turns it into iterators over the index, which is also where
+// operands get reordered, since that needs the document frequencies.
+// Subtrees made only of common terms (the ones the index also stored as bitmaps) are
+// evaluated up front with word-level bitmap operations and then iterated like any other operand
+abstract class QueryNode {
+    public abstract DocIdIterator compile(IndexReader reader);
+
+    // true when toBitmap() can evaluate this whole subtree without touching postings lists
+    public boolean hasBitmap(IndexReader reader) {
+        return false;
+    }
+
+    public RoaringBitmap toBitmap(IndexReader reader) {
+        return null;
+    }
+}
+
+class TermNode extends QueryNode {
+    private final String term;
+
+    public TermNode(String term) {
+        this.term = term;
+    }
+
+    public DocIdIterator compile(IndexReader reader) {
+        Integer termId = reader.getTermId(term);
+        int[] postings = termId == null ? null : reader.getPostings(termId);
+        return postings == null ? new EmptyIterator() : new PostingsIterator(postings);
+    }
+
+    public boolean hasBitmap(IndexReader reader) {
+        return toBitmap(reader) != null;
+    }
+
+    public RoaringBitmap toBitmap(IndexReader reader) {
+        Integer termId = reader.getTermId(term);
+        return termId == null ? null : reader.getBitmap(termId);
+    }
+}
+
+class AndNode extends QueryNode {
+    private final List<QueryNode> operands;
+
+    public AndNode(List<QueryNode> operands) {
+        this.operands = operands;
+    }
+
+    public DocIdIterator compile(IndexReader reader) {
+        List<DocIdIterator> required = new ArrayList<>();
+        List<QueryNode> excludedNodes = new ArrayList<>();
+        // every required operand that has a bitmap, ANDed together a word at a time
+        RoaringBitmap bitmapMatches = null;
+        for (QueryNode operand : operands) {
+            if (operand instanceof NotNode) {
+                excludedNodes.add(((NotNode) operand).getOperand());
+            } else if (operand.hasBitmap(reader)) {
+                RoaringBitmap bitmap = operand.toBitmap(reader);
+                bitmapMatches = bitmapMatches == null ? bitmap : bitmapMatches.and(bitmap);
+            } else {
+                DocIdIterator iterator = operand.compile(reader);
+                if (iterator.cost() == 0) {
+                    return new EmptyIterator();
+                }
+                required.add(iterator);
+            }
+        }
+
+        List<DocIdIterator> excluded = new ArrayList<>();
+        for (QueryNode excludedNode : excludedNodes) {
+            if (bitmapMatches != null && excludedNode.hasBitmap(reader)) {
+                bitmapMatches = bitmapMatches.andNot(excludedNode.toBitmap(reader));
+            } else {
+                excluded.add(excludedNode.compile(reader));
+            }
+        }
+        if (bitmapMatches != null) {
+            if (bitmapMatches.isEmpty()) {
+                return new EmptyIterator();
+            }
+            required.add(new BitmapIterator(bitmapMatches));
+        }
+
+        DocIdIterator matches;
+        if (required.isEmpty()) {
+            matches = new PostingsIterator(reader.getAllDocIds());
+        } else if (required.size() == 1) {
+            matches = required.get(0);
+        } else {
+            matches = new ConjunctionIterator(required);
+        }
+
+        if (excluded.isEmpty()) {
+            return matches;
+        }
+        return new ExclusionIterator(matches, excluded.size() == 1 ? excluded.get(0) : new DisjunctionIterator(excluded));
+    }
+
+    public boolean hasBitmap(IndexReader reader) {
+        boolean anyRequired = false;
+        for (QueryNode operand : operands) {
+            if (operand instanceof NotNode) {
+                if (!((NotNode) operand).getOperand().hasBitmap(reader)) {
+                    return false;
+                }
+            } else if (operand.hasBitmap(reader)) {
+                anyRequired = true;
+            } else {
+                return false;
+            }
+        }
+        return anyRequired;
+    }
+
+    public RoaringBitmap toBitmap(IndexReader reader) {
+        RoaringBitmap matches = null;
+        for (QueryNode operand : operands) {
+            if (!(operand instanceof NotNode)) {
+                RoaringBitmap bitmap = operand.toBitmap(reader);
+                matches = matches == null ? bitmap : matches.and(bitmap);
+            }
+        }
+        for (QueryNode operand : operands) {
+            if (operand instanceof NotNode) {
+                matches = matches.andNot(((NotNode) operand).getOperand().toBitmap(reader));
+            }
+        }
+        return matches;
+    }
+}
+
+class OrNode extends QueryNode {
+    private final List<QueryNode> operands;
+
+    public OrNode(List<QueryNode> operands) {
+        this.operands = operands;
+    }
+
+    public DocIdIterator compile(IndexReader reader) {
+        List<DocIdIterator> optional = new ArrayList<>();
+        // every operand that has a bitmap, ORed together a word at a time
+        RoaringBitmap bitmapMatches = null;
+        for (QueryNode operand : operands) {
+            if (operand.hasBitmap(reader)) {
+                RoaringBitmap bitmap = operand.toBitmap(reader);
+                bitmapMatches = bitmapMatches == null ? bitmap : bitmapMatches.or(bitmap);
+                continue;
+            }
+            DocIdIterator iterator = operand.compile(reader);
+            if (iterator.cost() > 0) {
+                optional.add(iterator);
+            }
+        }
+        if (bitmapMatches != null && !bitmapMatches.isEmpty()) {
+            optional.add(new BitmapIterator(bitmapMatches));
+        }
+
+        if (optional.isEmpty()) {
+            return new EmptyIterator();
+        }
+        return optional.size() == 1 ? optional.get(0) : new DisjunctionIterator(optional);
+    }
+
+    public boolean hasBitmap(IndexReader reader) {
+        for (QueryNode operand : operands) {
+            if (!operand.hasBitmap(reader)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public RoaringBitmap toBitmap(IndexReader reader) {
+        RoaringBitmap matches = null;
+        for (QueryNode operand : operands) {
+            RoaringBitmap bitmap = operand.toBitmap(reader);
+            matches = matches == null ? bitmap : matches.or(bitmap);
+        }
+        return matches;
+    }
+}
+
+class NotNode extends QueryNode {
+    private final QueryNode operand;
+
+    public NotNode(QueryNode operand) {
+        this.operand = operand;
+    }
+
+    public QueryNode getOperand() {
+        return operand;
+    }
+
+    // on its own (not inside an AND) a NOT is taken out of the whole collection
+    public DocIdIterator compile(IndexReader reader) {
+        return new ExclusionIterator(new PostingsIterator(reader.getAllDocIds()), operand.compile(reader));
+    }
+}
+
+// Walks a set of docIds in ascending order. docID() is -1 before the first nextDoc() and
+// NO_MORE_DOCS once the iterator is exhausted. advance(target) moves to the first doc >= target
+// and must only be called with a target past the current doc
+abstract class DocIdIterator {
+    public static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+
+    public abstract int docID();
+
+    public abstract int nextDoc();
+
+    public abstract int advance(int target);
+
+    // an upper bound on how many docs this will match, used to order operands
+    public abstract long cost();
+}
+
+class EmptyIterator extends DocIdIterator {
+    private int docId = -1;
+
+    public int docID() {
+        return docId;
+    }
+
+    public int nextDoc() {
+        return docId = NO_MORE_DOCS;
+    }
+
+    public int advance(int target) {
+        return docId = NO_MORE_DOCS;
+    }
+
+    public long cost() {
+        return 0;
+    }
+}
+
+class PostingsIterator extends DocIdIterator {
+    private final int[] postings;
+    private int index = -1;
+
+    public PostingsIterator(int[] postings) {
+        this.postings = postings;
+    }
+
+    public int docID() {
+        if (index < 0) {
+            return -1;
+        }
+        return index < postings.length ? postings[index] : NO_MORE_DOCS;
+    }
+
+    public int nextDoc() {
+        if (index < postings.length) {
+            index++;
+        }
+        return docID();
+    }
+
+    public int advance(int target) {
+        index = gallop(postings, index + 1, target);
+        return docID();
+    }
+
+    public long cost() {
+        return postings.length;
+    }
+
+    // index of the first posting >= target, searching from 'from' with doubling steps
+    // and then a binary search inside the last step, so skipping ahead costs O(log(gap))
+    private static int gallop(int[] postings, int from, int target) {
+        if (from >= postings.length || postings[from] >= target) {
+            return from;
+        }
+
+        int low = from;
+        int step = 1;
+        int high = from + step;
+        while (high < postings.length && postings[high] < target) {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+        high = Math.min(high, postings.length - 1);
+
+        // postings[low] < target, and the answer is in (low, high] or past the end
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (postings[mid] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return postings[low] < target ? low + 1 : low;
+    }
+}
+
+// Docs matched by every operand. The rarest operand leads and the others are only
+// asked to advance() to its candidates
+class ConjunctionIterator extends DocIdIterator {
+    private final DocIdIterator[] iterators;
+    private final DocIdIterator lead;
+    private int docId = -1;
+
+    public ConjunctionIterator(List<DocIdIterator> operands) {
+        this.iterators = operands.toArray(new DocIdIterator[0]);
+        Arrays.sort(iterators, Comparator.comparingLong(DocIdIterator::cost));
+        this.lead = iterators[0];
+    }
+
+    public int docID() {
+        return docId;
+    }
+
+    public int nextDoc() {
+        return align(lead.nextDoc());
+    }
+
+    public int advance(int target) {
+        return align(lead.advance(target));
+    }
+
+    // moves everything forward until all operands sit on the same doc
+    private int align(int doc) {
+        candidates:
+        while (doc != NO_MORE_DOCS) {
+            for (int i = 1; i < iterators.length; i++) {
+                int other = iterators[i].docID();
+                if (other < doc) {
+                    other = iterators[i].advance(doc);
+                }
+                if (other > doc) {
+                    doc = lead.advance(other);
+                    continue candidates;
+                }
+            }
+            return docId = doc;
+        }
+        return docId = NO_MORE_DOCS;
+    }
+
+    public long cost() {
+        return lead.cost();
+    }
+}
+
+// Docs matched by any operand, merged through a binary min-heap keyed on each operand's docID
+class DisjunctionIterator extends DocIdIterator {
+    private final DocIdIterator[] heap;
+    private final long cost;
+    private int docId = -1;
+
+    public DisjunctionIterator(List<DocIdIterator> operands) {
+        this.heap = operands.toArray(new DocIdIterator[0]);
+        long total = 0;
+        for (DocIdIterator operand : heap) {
+            total += operand.cost();
+        }
+        this.cost = total;
+    }
+
+    public int docID() {
+        return docId;
+    }
+
+    public int nextDoc() {
+        if (docId == NO_MORE_DOCS) {
+            return docId;
+        }
+        return advance(docId + 1);
+    }
+
+    // every operand starts at -1, so the first call pulls them all in
+    public int advance(int target) {
+        while (heap[0].docID() < target) {
+            heap[0].advance(target);
+            siftDown();
+        }
+        return docId = heap[0].docID();
+    }
+
+    private void siftDown() {
+        int i = 0;
+        DocIdIterator top = heap[0];
+        int topDoc = top.docID();
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heap.length) {
+                break;
+            }
+            if (child + 1 < heap.length && heap[child + 1].docID() < heap[child].docID()) {
+                child++;
+            }
+            if (heap[child].docID() >= topDoc) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = top;
+    }
 
+    public long cost() {
+        return cost;
+    }
 }
 
-class DocIdCountPair {
-    private int docId;
-    private int count;
+// Docs matched by include but not by exclude
+class ExclusionIterator extends DocIdIterator {
+    private final DocIdIterator include;
+    private final DocIdIterator exclude;
+    private int docId = -1;
+
+    public ExclusionIterator(DocIdIterator include, DocIdIterator exclude) {
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    public int docID() {
+        return docId;
+    }
+
+    public int nextDoc() {
+        return skipExcluded(include.nextDoc());
+    }
 
-    public DocIdCountPair() {
-        this.docId = 0;  
-        this.count = 0;
+    public int advance(int target) {
+        return skipExcluded(include.advance(target));
     }
 
-    public DocIdCountPair(int docId, int count) {
-        this.docId = docId;
-        this.count = count;
+    private int skipExcluded(int doc) {
+        while (doc != NO_MORE_DOCS) {
+            int excluded = exclude.docID();
+            if (excluded < doc) {
+                excluded = exclude.advance(doc);
+            }
+            if (excluded != doc) {
+                return docId = doc;
+            }
+            doc = include.nextDoc();
+        }
+        return docId = NO_MORE_DOCS;
     }
 
-    public int getDocId() {
+    public long cost() {
+        return include.cost();
+    }
+}
+
+
+// Iterates the docs in a RoaringBitmap, chunk by chunk
+class BitmapIterator extends DocIdIterator {
+    private final RoaringBitmap bitmap;
+    private int chunk = 0;
+    private int docId = -1;
+
+    public BitmapIterator(RoaringBitmap bitmap) {
+        this.bitmap = bitmap;
+    }
+
+    public int docID() {
         return docId;
     }
 
-    public void setDocId(int docId) {
-        this.docId = docId;
+    public int nextDoc() {
+        if (docId == NO_MORE_DOCS) {
+            return docId;
+        }
+        return advance(docId + 1);
+    }
+
+    public int advance(int target) {
+        int targetKey = target >>> 16;
+        while (chunk < bitmap.getNumChunks()) {
+            int key = bitmap.getKey(chunk);
+            if (key >= targetKey) {
+                int low = bitmap.getContainer(chunk).nextValue(key == targetKey ? target & 0xFFFF : 0);
+                if (low >= 0) {
+                    return docId = (key << 16) | low;
+                }
+            }
+            chunk++;
+        }
+        return docId = NO_MORE_DOCS;
+    }
+
+    public long cost() {
+        return bitmap.getCardinality();
+    }
+}
+
+// The postings of a common term as written by the index engine's RoaringBitmapWriter: docIds
+// are grouped into chunks by their high 16 bits, and each chunk's low 16 bits are kept in an
+// array, bitmap or run container. Bitmaps are never modified, and() / or() / andNot() return
+// new ones that share whatever containers they can
+class RoaringBitmap {
+    static final byte ARRAY_CONTAINER = 0;
+    static final byte BITMAP_CONTAINER = 1;
+    static final byte RUN_CONTAINER = 2;
+
+    private final char[] keys;
+    private final Container[] containers;
+    private final int numChunks;
+    private final long cardinality;
+
+    private RoaringBitmap(char[] keys, Container[] containers, int numChunks) {
+        this.keys = keys;
+        this.containers = containers;
+        this.numChunks = numChunks;
+        long total = 0;
+        for (int i = 0; i < numChunks; i++) {
+            total += containers[i].getCardinality();
+        }
+        this.cardinality = total;
+    }
+
+    public static RoaringBitmap read(DataInputStream in) throws IOException {
+        int numChunks = in.readInt();
+        char[] keys = new char[numChunks];
+        Container[] containers = new Container[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            keys[i] = in.readChar();
+            byte type = in.readByte();
+            if (type == ARRAY_CONTAINER) {
+                char[] values = new char[in.readInt()];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = in.readChar();
+                }
+                containers[i] = new ArrayContainer(values);
+            } else if (type == BITMAP_CONTAINER) {
+                long[] words = new long[1024];
+                for (int j = 0; j < words.length; j++) {
+                    words[j] = in.readLong();
+                }
+                containers[i] = new BitmapContainer(words);
+            } else if (type == RUN_CONTAINER) {
+                int runs = in.readInt();
+                char[] starts = new char[runs];
+                char[] lengths = new char[runs];
+                for (int j = 0; j < runs; j++) {
+                    starts[j] = in.readChar();
+                    lengths[j] = in.readChar();
+                }
+                containers[i] = new RunContainer(starts, lengths);
+            } else {
+                throw new IOException("Unknown bitmap container type " + type);
+            }
+        }
+        return new RoaringBitmap(keys, containers, numChunks);
+    }
+
+    public int getNumChunks() {
+        return numChunks;
+    }
+
+    public int getKey(int chunk) {
+        return keys[chunk];
+    }
+
+    public Container getContainer(int chunk) {
+        return containers[chunk];
+    }
+
+    public long getCardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return numChunks == 0;
+    }
+
+    public RoaringBitmap and(RoaringBitmap other) {
+        int capacity = Math.min(numChunks, other.numChunks);
+        char[] newKeys = new char[capacity];
+        Container[] newContainers = new Container[capacity];
+        int size = 0;
+        int i = 0, j = 0;
+        while (i < numChunks && j < other.numChunks) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container container = Container.and(containers[i], other.containers[j]);
+                if (container != null) {
+                    newKeys[size] = keys[i];
+                    newContainers[size++] = container;
+                }
+                i++;
+                j++;
+            }
+        }
+        return new RoaringBitmap(newKeys, newContainers, size);
+    }
+
+    public RoaringBitmap or(RoaringBitmap other) {
+        int capacity = numChunks + other.numChunks;
+        char[] newKeys = new char[capacity];
+        Container[] newContainers = new Container[capacity];
+        int size = 0;
+        int i = 0, j = 0;
+        while (i < numChunks || j < other.numChunks) {
+            if (j == other.numChunks || (i < numChunks && keys[i] < other.keys[j])) {
+                newKeys[size] = keys[i];
+                newContainers[size++] = containers[i++];
+            } else if (i == numChunks || keys[i] > other.keys[j]) {
+                newKeys[size] = other.keys[j];
+                newContainers[size++] = other.containers[j++];
+            } else {
+                newKeys[size] = keys[i];
+                newContainers[size++] = Container.or(containers[i++], other.containers[j++]);
+            }
+        }
+        return new RoaringBitmap(newKeys, newContainers, size);
+    }
+
+    public RoaringBitmap andNot(RoaringBitmap other) {
+        char[] newKeys = new char[numChunks];
+        Container[] newContainers = new Container[numChunks];
+        int size = 0;
+        int j = 0;
+        for (int i = 0; i < numChunks; i++) {
+            while (j < other.numChunks && other.keys[j] < keys[i]) {
+                j++;
+            }
+            Container container = containers[i];
+            if (j < other.numChunks && other.keys[j] == keys[i]) {
+                container = Container.andNot(container, other.containers[j]);
+            }
+            if (container != null) {
+                newKeys[size] = keys[i];
+                newContainers[size++] = container;
+            }
+        }
+        return new RoaringBitmap(newKeys, newContainers, size);
+    }
+}
+
+// The low 16 bits of the docs in one chunk. Two bitmaps (or a bitmap and a run container) are
+// combined over their 1024 long words; anything involving an array just probes the other side
+abstract class Container {
+    static final int MAX_ARRAY_SIZE = 4096;
+
+    public abstract int getCardinality();
+
+    public abstract boolean contains(int low);
+
+    // the smallest value >= low, or -1 if there isn't one
+    public abstract int nextValue(int low);
+
+    // a fresh 1024-word bitmap of this container's values
+    public abstract long[] toWords();
+
+    // each of these returns null rather than an empty container
+    public static Container and(Container a, Container b) {
+        if (a instanceof ArrayContainer || b instanceof ArrayContainer) {
+            boolean probeA = a instanceof ArrayContainer && (!(b instanceof ArrayContainer) || a.getCardinality() <= b.getCardinality());
+            return ((ArrayContainer) (probeA ? a : b)).filter(probeA ? b : a, true);
+        }
+        long[] words = a.toWords();
+        long[] otherWords = b.toWords();
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= otherWords[i];
+        }
+        return BitmapContainer.fromWords(words);
+    }
+
+    public static Container or(Container a, Container b) {
+        if (a instanceof ArrayContainer && b instanceof ArrayContainer
+                && a.getCardinality() + b.getCardinality() <= MAX_ARRAY_SIZE) {
+            return ((ArrayContainer) a).merge((ArrayContainer) b);
+        }
+        long[] words = a.toWords();
+        long[] otherWords = b.toWords();
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= otherWords[i];
+        }
+        return BitmapContainer.fromWords(words);
+    }
+
+    public static Container andNot(Container a, Container b) {
+        if (a instanceof ArrayContainer) {
+            return ((ArrayContainer) a).filter(b, false);
+        }
+        long[] words = a.toWords();
+        long[] otherWords = b.toWords();
+        for (int i = 0; i < words.length; i++) {
+            words[i] &= ~otherWords[i];
+        }
+        return BitmapContainer.fromWords(words);
+    }
+}
+
+class ArrayContainer extends Container {
+    private final char[] values;
+
+    public ArrayContainer(char[] values) {
+        this.values = values;
+    }
+
+    public int getCardinality() {
+        return values.length;
+    }
+
+    public boolean contains(int low) {
+        return Arrays.binarySearch(values, (char) low) >= 0;
+    }
+
+    public int nextValue(int low) {
+        int index = Arrays.binarySearch(values, (char) low);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return index < values.length ? values[index] : -1;
+    }
+
+    public long[] toWords() {
+        long[] words = new long[1024];
+        for (char value : values) {
+            words[value >>> 6] |= 1L << value;
+        }
+        return words;
+    }
+
+    // the values that are (keep = true) or aren't (keep = false) in other
+    public Container filter(Container other, boolean keep) {
+        char[] kept = new char[values.length];
+        int size = 0;
+        for (char value : values) {
+            if (other.contains(value) == keep) {
+                kept[size++] = value;
+            }
+        }
+        return size == 0 ? null : new ArrayContainer(Arrays.copyOf(kept, size));
+    }
+
+    public Container merge(ArrayContainer other) {
+        char[] merged = new char[values.length + other.values.length];
+        int size = 0;
+        int i = 0, j = 0;
+        while (i < values.length || j < other.values.length) {
+            if (j == other.values.length || (i < values.length && values[i] < other.values[j])) {
+                merged[size++] = values[i++];
+            } else if (i == values.length || values[i] > other.values[j]) {
+                merged[size++] = other.values[j++];
+            } else {
+                merged[size++] = values[i++];
+                j++;
+            }
+        }
+        return new ArrayContainer(Arrays.copyOf(merged, size));
+    }
+}
+
+class BitmapContainer extends Container {
+    private final long[] words;
+    private final int cardinality;
+
+    public BitmapContainer(long[] words) {
+        this.words = words;
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        this.cardinality = count;
+    }
+
+    // sparse results go back to being arrays, like the index engine would have stored them
+    public static Container fromWords(long[] words) {
+        BitmapContainer bitmap = new BitmapContainer(words);
+        if (bitmap.cardinality == 0) {
+            return null;
+        }
+        if (bitmap.cardinality > MAX_ARRAY_SIZE) {
+            return bitmap;
+        }
+
+        char[] values = new char[bitmap.cardinality];
+        int size = 0;
+        for (int i = 0; i < words.length; i++) {
+            long word = words[i];
+            while (word != 0) {
+                values[size++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return new ArrayContainer(values);
+    }
+
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    public boolean contains(int low) {
+        return (words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    public int nextValue(int low) {
+        int i = low >>> 6;
+        long word = words[i] & (-1L << low);
+        while (word == 0) {
+            if (++i == words.length) {
+                return -1;
+            }
+            word = words[i];
+        }
+        return i * 64 + Long.numberOfTrailingZeros(word);
+    }
+
+    public long[] toWords() {
+        return words.clone();
+    }
+}
+
+// Stretches of consecutive docs, each stored as its first value and its length - 1
+class RunContainer extends Container {
+    private final char[] starts;
+    private final char[] lengths;
+    private final int cardinality;
+
+    public RunContainer(char[] starts, char[] lengths) {
+        this.starts = starts;
+        this.lengths = lengths;
+        int count = 0;
+        for (char length : lengths) {
+            count += length + 1;
+        }
+        this.cardinality = count;
+    }
+
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    public boolean contains(int low) {
+        int run = lastRunStartingAtOrBefore(low);
+        return run >= 0 && low <= starts[run] + lengths[run];
     }
 
-    public int getCount() {
-        return count;
+    public int nextValue(int low) {
+        int run = lastRunStartingAtOrBefore(low);
+        if (run >= 0 && low <= starts[run] + lengths[run]) {
+            return low;
+        }
+        return run + 1 < starts.length ? starts[run + 1] : -1;
     }
 
-    public void setCount(int count) {
-        this.count = count;
+    private int lastRunStartingAtOrBefore(int low) {
+        int lowIndex = 0;
+        int highIndex = starts.length - 1;
+        int found = -1;
+        while (lowIndex <= highIndex) {
+            int mid = (lowIndex + highIndex) >>> 1;
+            if (starts[mid] <= low) {
+                found = mid;
+                lowIndex = mid + 1;
+            } else {
+                highIndex = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    // fills each run a whole word at a time where it can
+    public long[] toWords() {
+        long[] words = new long[1024];
+        for (int run = 0; run < starts.length; run++) {
+            int from = starts[run];
+            int to = from + lengths[run] + 1;
+            int firstWord = from >>> 6;
+            int lastWord = (to - 1) >>> 6;
+            long firstMask = -1L << from;
+            long lastMask = -1L >>> -to;
+            if (firstWord == lastWord) {
+                words[firstWord] |= firstMask & lastMask;
+            } else {
+                words[firstWord] |= firstMask;
+                for (int i = firstWord + 1; i < lastWord; i++) {
+                    words[i] = -1L;
+                }
+                words[lastWord] |= lastMask;
+            }
+        }
+        return words;
     }
 }
 
@@ -1,18 +1,39 @@
 package GetDoc;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class GetDoc {
+    // most of a batch is waiting on file opens, a few readers are enough to keep the disk busy
+    private static final int BATCH_READERS = 4;
+
     public static void main(String[] args) {
         if (args.length < 3) {
             System.out.println("Error: Two arguments required (inputPath outputPath). Application now exiting.");
@@ -33,7 +54,24 @@ public class GetDoc {
         } 
         
         try {
-            if (type.equals("docno") || type.equals("id")) {
+            if ((type.equals("docno") || type.equals("id")) && identifier.startsWith("--batch=")) {
+                if (!DocNoTables.exists(path)) {
+                    System.out.println("Batch mode needs the docno-index tables, please rebuild the index with the current IndexEngine");
+                    System.exit(1);
+                }
+                try (DocNoTables tables = DocNoTables.open(path)) {
+                    getDocuments(identifier.substring("--batch=".length()), type, tables, path);
+                }
+            } else if ((type.equals("docno") || type.equals("id")) && DocNoTables.exists(path)) {
+                // indexes written by the current index engine have lookup tables, no need to read docnos.txt
+                try (DocNoTables tables = DocNoTables.open(path)) {
+                    if (type.equals("docno")) {
+                        getDocumentByDocNo(identifier, tables, path);
+                    } else {
+                        getDocumentById(identifier, tables, path);
+                    }
+                }
+            } else if (type.equals("docno") || type.equals("id")) {
                 HashMap <String, String> DocNoToPath = new HashMap<String, String>();
                 List<String> idToPath = new ArrayList<String>();
 
@@ -111,6 +149,29 @@ public class GetDoc {
         read(documentFile, identifier, metadataFile);
     }
 
+    private static void getDocumentByDocNo(String identifier, DocNoTables tables, String path) throws IOException {
+        int internalId = tables.findId(identifier);
+        if (internalId < 0) {
+            System.out.println("No document with that docno");
+            System.exit(1);
+        }
+        stream(tables, internalId, identifier, path);
+    }
+
+    private static void getDocumentById(String identifier, DocNoTables tables, String path) throws IOException {
+        int internalId;
+        try {
+            internalId = Integer.parseInt(identifier);
+        } catch (NumberFormatException e) {
+            internalId = -1;
+        }
+        if (internalId < 1 || internalId > tables.size()) {
+            System.out.println("No document with that ID");
+            System.exit(1);
+        }
+        stream(tables, internalId, identifier, path);
+    }
+
     private static void getDocumentById(String identifier, List<String> idToPath, String path, HashMap<Integer, String> idToDocNo){
         // get the docno from the internalId
 
@@ -130,11 +191,56 @@ public class GetDoc {
         read(documentFile, identifier, metadataFile);
     }
 
+    // Same output as read(), but the raw document is handed from the file to stdout with
+    // transferTo instead of being decoded and printed line by line
+    private static void stream(DocNoTables tables, int internalId, String identifier, String path) throws IOException {
+        String[] entry = tables.readEntry(internalId);
+        File documentFile = new File(entry[1]);
+        File metadataFile = new File(path + "metadata/" + entry[0] + "-metadata.txt");
+
+        if (!documentFile.exists()) {
+            System.out.println("Error: Document with DOCNO/id " + identifier + " not found.");
+            return;
+        }
+        printMetadata(metadataFile);
+
+        System.out.flush();
+        // not closed, that would close stdout
+        FileChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel();
+        try (FileChannel document = FileChannel.open(documentFile.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            long size = document.size();
+            while (position < size) {
+                position += document.transferTo(position, size - position, stdout);
+            }
+        }
+    }
+
     private static void read(File documentFile, String identifier, File metadataFile){
         if (!documentFile.exists()) {
             System.out.println("Error: Document with DOCNO/id " + identifier + " not found.");
             return;
         }
+        printMetadata(metadataFile);
+
+        //reading the file contents
+        try (BufferedReader reader = new BufferedReader(new FileReader(documentFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                System.out.println(line);
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading document: " + e.getMessage());
+        }
+    }   
+
+    private static void printMetadata(File metadataFile) {
+        System.out.print(formatMetadata(metadataFile));
+    }
+
+    private static String formatMetadata(File metadataFile) {
+        StringBuilder out = new StringBuilder();
+        String newline = System.lineSeparator();
         // reaading the metadata
         try (BufferedReader reader = new BufferedReader(new FileReader(metadataFile))) {
             String line;
@@ -142,22 +248,206 @@ public class GetDoc {
                 String[] parts = line.split(" (?=docno:|internal id:|date:|headline:)"); 
 
                 for (String part : parts) {
-                    System.out.println(part);
+                    out.append(part).append(newline);
                 }
             }
-            System.out.println("raw document: ");
+            out.append("raw document: ").append(newline);
         } catch (IOException e) {
-            System.out.println("Error reading document: " + e.getMessage());
+            out.append("Error reading document: ").append(e.getMessage()).append(newline);
         }
+        return out.toString();
+    }
 
-        //reading the file contents
-        try (BufferedReader reader = new BufferedReader(new FileReader(documentFile))) {
+    /*
+     * BATCH MODE
+     * Reads one docno or id per line from a file ("-" for stdin) and prints every document the
+     * way a single lookup would, in the order they were asked for. The reads themselves are
+     * issued in docId order, which is the order the index engine wrote the documents and their
+     * docnos.txt lines, and spread over a small pool of readers
+     */
+    private static void getDocuments(String listPath, String type, DocNoTables tables, String path) throws IOException {
+        List<String> identifiers = readIdentifiers(listPath);
+
+        int[] internalIds = new int[identifiers.size()];
+        for (int i = 0; i < internalIds.length; i++) {
+            internalIds[i] = type.equals("docno") ? tables.findId(identifiers.get(i)) : parseId(identifiers.get(i), tables);
+        }
+
+        Integer[] readOrder = new Integer[internalIds.length];
+        for (int i = 0; i < readOrder.length; i++) {
+            readOrder[i] = i;
+        }
+        Arrays.sort(readOrder, Comparator.comparingInt(i -> internalIds[i]));
+
+        ExecutorService readers = Executors.newFixedThreadPool(Math.min(BATCH_READERS, Runtime.getRuntime().availableProcessors()));
+        List<Future<byte[]>> documents = new ArrayList<>(Collections.nCopies(internalIds.length, null));
+        for (int request : readOrder) {
+            int internalId = internalIds[request];
+            String identifier = identifiers.get(request);
+            documents.set(request, readers.submit(() -> renderDocument(tables, internalId, identifier, type, path)));
+        }
+
+        // written as each one in request order finishes, not after the whole batch
+        OutputStream stdout = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+        try {
+            for (Future<byte[]> document : documents) {
+                stdout.write(document.get());
+            }
+            stdout.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    private static List<String> readIdentifiers(String listPath) throws IOException {
+        List<String> identifiers = new ArrayList<>();
+        BufferedReader reader = listPath.equals("-")
+            ? new BufferedReader(new InputStreamReader(System.in))
+            : new BufferedReader(new FileReader(listPath));
+        try {
             String line;
             while ((line = reader.readLine()) != null) {
-                System.out.println(line);
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    identifiers.add(line);
+                }
             }
+        } finally {
+            reader.close();
+        }
+        return identifiers;
+    }
+
+    // -1 for anything that isn't a valid id, like findId does for unknown docnos
+    private static int parseId(String identifier, DocNoTables tables) {
+        try {
+            int internalId = Integer.parseInt(identifier);
+            return internalId >= 1 && internalId <= tables.size() ? internalId : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // everything a single lookup of this document prints, error messages included
+    private static byte[] renderDocument(DocNoTables tables, int internalId, String identifier, String type, String path) throws IOException {
+        String newline = System.lineSeparator();
+        if (internalId < 0) {
+            String message = type.equals("docno") ? "No document with that docno" : "No document with that ID";
+            return (message + newline).getBytes(StandardCharsets.UTF_8);
+        }
+
+        String[] entry = tables.readEntry(internalId);
+        File documentFile = new File(entry[1]);
+        if (!documentFile.exists()) {
+            return ("Error: Document with DOCNO/id " + identifier + " not found." + newline).getBytes(StandardCharsets.UTF_8);
+        }
+
+        byte[] metadata = formatMetadata(new File(path + "metadata/" + entry[0] + "-metadata.txt")).getBytes(StandardCharsets.UTF_8);
+        byte[] raw = Files.readAllBytes(documentFile.toPath());
+        byte[] document = Arrays.copyOf(metadata, metadata.length + raw.length);
+        System.arraycopy(raw, 0, document, metadata.length, raw.length);
+        return document;
+    }
+}
+
+// The docno-index tables the index engine writes next to docnos.txt, memory-mapped so a
+// lookup only touches the pages it binary searches through:
+//   ids.bin    - count, then the offset of each id's line in docnos.txt (plus the file length)
+//   docnos.bin - count, width, then (docno padded to width bytes, id) records sorted by docno
+class DocNoTables implements Closeable {
+    private final FileChannel docNosFile;
+    private final MappedByteBuffer ids;
+    private final MappedByteBuffer docNos;
+    private final int count;
+    private final int width;
+
+    private DocNoTables(FileChannel docNosFile, MappedByteBuffer ids, MappedByteBuffer docNos) {
+        this.docNosFile = docNosFile;
+        this.ids = ids;
+        this.docNos = docNos;
+        this.count = ids.getInt(0);
+        this.width = docNos.getInt(4);
+    }
+
+    public static boolean exists(String path) {
+        return new File(path + "docno-index/ids.bin").exists() && new File(path + "docno-index/docnos.bin").exists();
+    }
+
+    public static DocNoTables open(String path) throws IOException {
+        FileChannel docNosFile = FileChannel.open(Paths.get(path + "docnos.txt"), StandardOpenOption.READ);
+        try (FileChannel idsFile = FileChannel.open(Paths.get(path + "docno-index/ids.bin"), StandardOpenOption.READ);
+             FileChannel docNosTable = FileChannel.open(Paths.get(path + "docno-index/docnos.bin"), StandardOpenOption.READ)) {
+            // a mapping stays valid after its channel is closed
+            return new DocNoTables(docNosFile,
+                idsFile.map(FileChannel.MapMode.READ_ONLY, 0, idsFile.size()),
+                docNosTable.map(FileChannel.MapMode.READ_ONLY, 0, docNosTable.size()));
         } catch (IOException e) {
-            System.out.println("Error reading document: " + e.getMessage());
+            docNosFile.close();
+            throw e;
         }
-    }   
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // the internal id for a docno, or -1 if there's no such document
+    public int findId(String docNo) {
+        byte[] key = docNo.getBytes(StandardCharsets.UTF_8);
+        if (key.length > width) {
+            return -1;
+        }
+
+        int recordSize = width + 4;
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int record = 8 + mid * recordSize;
+            int cmp = compareDocNo(record, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return docNos.getInt(record + width);
+            }
+        }
+        return -1;
+    }
+
+    // compares the padded docno at record to key, as unsigned bytes with key padded by zeros
+    private int compareDocNo(int record, byte[] key) {
+        for (int i = 0; i < width; i++) {
+            int stored = docNos.get(record + i) & 0xFF;
+            int wanted = i < key.length ? key[i] & 0xFF : 0;
+            if (stored != wanted) {
+                return stored - wanted;
+            }
+        }
+        return 0;
+    }
+
+    // {docno, path to the raw document} from the id's line in docnos.txt
+    public String[] readEntry(int internalId) throws IOException {
+        long start = ids.getLong(4 + (internalId - 1) * 8);
+        long end = ids.getLong(4 + internalId * 8);
+        ByteBuffer line = ByteBuffer.allocate((int) (end - start));
+        while (line.hasRemaining()) {
+            if (docNosFile.read(line, start + line.position()) < 0) {
+                break;
+            }
+        }
+
+        String text = new String(line.array(), 0, line.position(), StandardCharsets.UTF_8).trim();
+        return text.split(" ", 2);
+    }
+
+    public void close() throws IOException {
+        docNosFile.close();
+    }
 }
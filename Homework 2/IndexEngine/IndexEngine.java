@@ -1,5 +1,6 @@
 package IndexEngine;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,12 +21,18 @@ public class IndexEngine {
     private static Map<Integer, List<DocIdCountPair>> invertedIndex;
     private static List<Integer> docLengths;
     private static String outputPathToFiles;
+    // terms in at least this many documents also get a bitmap copy of their postings, 0 turns it off
+    private static int bitmapMinDf = 1024;
     public static void main(String[] args) {
         if (args.length < 2) {
             System.out.println("Error: Two arguments required (inputPath outputPath). Application now exiting.");
             System.exit(1);
         }
     
+        for (int i = 2; i < args.length; i++) {
+            parseOption(args[i]);
+        }
+
         String inputPath = args[0];
         String outputPath = args[1];
 
@@ -47,6 +54,10 @@ public class IndexEngine {
             writeLexiconToFile(lexicon, outputPathToFiles);
             writeInvertedIndexToFile(invertedIndex, outputPathToFiles);
             writeDocLengthsToFile(docLengths, outputPathToFiles);
+            if (bitmapMinDf > 0) {
+                writeBitmapsToFile(invertedIndex, outputPathToFiles);
+            }
+            writeDocNoTablesToFile(outputPathToFiles);
             System.out.println("Finished Indexing");
         } catch (FileNotFoundException e) {
             System.out.println("Error: The specified input file was not found: " + inputPath);
@@ -57,6 +68,24 @@ public class IndexEngine {
         }
     }
 
+    private static void parseOption(String option) {
+        try {
+            if (option.startsWith("--bitmap-df=")) {
+                bitmapMinDf = Integer.parseInt(option.substring("--bitmap-df=".length()));
+                if (bitmapMinDf < 0) {
+                    System.err.println("Bitmap df threshold can't be negative.");
+                    System.exit(1);
+                }
+                return;
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for option: " + option);
+            System.exit(1);
+        }
+        System.err.println("Unknown option: " + option);
+        System.exit(1);
+    }
+
     public static void processGZippedfiles(String inputPath, String outputPath) throws FileNotFoundException, IOException{
         File outputFile = new File(outputPath);
         if (outputFile.exists()) {
@@ -227,6 +256,96 @@ public class IndexEngine {
         }
     }
     
+    // Postings of common terms are also written as Roaring-style bitmaps (see RoaringBitmapWriter)
+    // so boolean search can combine them a machine word at a time. Rare terms stay list-only
+    private static void writeBitmapsToFile(Map<Integer, List<DocIdCountPair>> invertedIndex, String filePath) {
+        String bitmapsPath = filePath + "/bitmaps/";
+        new File(bitmapsPath).mkdirs();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bitmapsPath + "bitmaps.bin")))) {
+            int numTerms = 0;
+            for (List<DocIdCountPair> postingsList : invertedIndex.values()) {
+                if (postingsList.size() >= bitmapMinDf) {
+                    numTerms++;
+                }
+            }
+            out.writeInt(numTerms);
+
+            for (Map.Entry<Integer, List<DocIdCountPair>> entry : invertedIndex.entrySet()) {
+                List<DocIdCountPair> postingsList = entry.getValue();
+                if (postingsList.size() < bitmapMinDf) {
+                    continue;
+                }
+
+                // postings were added as documents were read, so they're already in docId order
+                int[] docIds = new int[postingsList.size()];
+                for (int i = 0; i < docIds.length; i++) {
+                    docIds[i] = postingsList.get(i).getDocId();
+                }
+                out.writeInt(entry.getKey());
+                RoaringBitmapWriter.write(out, docIds);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Lookup tables over docnos.txt so GetDoc can find one document without reading the whole file:
+    //   docno-index/ids.bin     - count, then the byte offset of line id in docnos.txt for every id,
+    //                             plus the file length so line id ends where line id + 1 starts
+    //   docno-index/docnos.bin  - count, width, then (docno padded to width bytes, id) records
+    //                             sorted by docno so it can be binary searched
+    private static void writeDocNoTablesToFile(String filePath) throws IOException {
+        String tablesPath = filePath + "/docno-index/";
+        new File(tablesPath).mkdirs();
+
+        List<Long> offsets = new ArrayList<>();
+        List<byte[]> docNos = new ArrayList<>();
+        byte[] contents = Files.readAllBytes(Paths.get(filePath + "/docnos.txt"));
+        int lineStart = 0;
+        for (int i = 0; i < contents.length; i++) {
+            if (contents[i] == '\n') {
+                int space = lineStart;
+                while (space < i && contents[space] != ' ') {
+                    space++;
+                }
+                offsets.add((long) lineStart);
+                docNos.add(Arrays.copyOfRange(contents, lineStart, space));
+                lineStart = i + 1;
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tablesPath + "ids.bin")))) {
+            out.writeInt(offsets.size());
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            out.writeLong(contents.length);
+        }
+
+        int width = 0;
+        for (byte[] docNo : docNos) {
+            width = Math.max(width, docNo.length);
+        }
+        // ids are 1-based and follow the order of docnos.txt
+        Integer[] byDocNo = new Integer[docNos.size()];
+        for (int i = 0; i < byDocNo.length; i++) {
+            byDocNo[i] = i;
+        }
+        Arrays.sort(byDocNo, (a, b) -> Arrays.compareUnsigned(docNos.get(a), docNos.get(b)));
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tablesPath + "docnos.bin")))) {
+            out.writeInt(byDocNo.length);
+            out.writeInt(width);
+            for (int index : byDocNo) {
+                byte[] docNo = docNos.get(index);
+                out.write(docNo);
+                out.write(new byte[width - docNo.length]);
+                out.writeInt(index + 1);
+            }
+        }
+    }
+
     private static void writeDocLengthsToFile(List<Integer> docLengths, String filePath){
         String docLengthsPath = filePath + "/doc-lengths/";
 
@@ -418,3 +537,78 @@ class DocIdCountPair {
         this.count = count;
     }
 }
+
+// Serializes a sorted docId list the way Roaring bitmaps lay it out. DocIds are split by their
+// high 16 bits into chunks of 65536, and each chunk is stored in whichever container is smallest:
+//   array  - the sorted low 16 bits, 2 bytes per doc (never more than 4096 docs)
+//   bitmap - 1024 longs, one bit per possible doc
+//   run    - (start, length - 1) pairs for each stretch of consecutive docs
+// Layout: chunk count, then per chunk its key (char), type (byte) and payload
+class RoaringBitmapWriter {
+    static final byte ARRAY_CONTAINER = 0;
+    static final byte BITMAP_CONTAINER = 1;
+    static final byte RUN_CONTAINER = 2;
+    static final int MAX_ARRAY_SIZE = 4096;
+
+    public static void write(DataOutputStream out, int[] docIds) throws IOException {
+        int numChunks = 0;
+        for (int i = 0; i < docIds.length; i++) {
+            if (i == 0 || (docIds[i] >>> 16) != (docIds[i - 1] >>> 16)) {
+                numChunks++;
+            }
+        }
+        out.writeInt(numChunks);
+
+        int start = 0;
+        while (start < docIds.length) {
+            int key = docIds[start] >>> 16;
+            int end = start;
+            int runs = 0;
+            while (end < docIds.length && (docIds[end] >>> 16) == key) {
+                if (end == start || docIds[end] != docIds[end - 1] + 1) {
+                    runs++;
+                }
+                end++;
+            }
+            writeContainer(out, key, docIds, start, end, runs);
+            start = end;
+        }
+    }
+
+    private static void writeContainer(DataOutputStream out, int key, int[] docIds, int start, int end, int runs) throws IOException {
+        int cardinality = end - start;
+        int arrayBytes = 2 * cardinality;
+        int bitmapBytes = 8 * 1024;
+        int runBytes = 4 * runs;
+
+        out.writeChar(key);
+        if (runBytes < Math.min(arrayBytes, bitmapBytes)) {
+            out.writeByte(RUN_CONTAINER);
+            out.writeInt(runs);
+            int runStart = start;
+            for (int i = start + 1; i <= end; i++) {
+                if (i == end || docIds[i] != docIds[i - 1] + 1) {
+                    out.writeChar(docIds[runStart] & 0xFFFF);
+                    out.writeChar(i - 1 - runStart);
+                    runStart = i;
+                }
+            }
+        } else if (cardinality <= MAX_ARRAY_SIZE) {
+            out.writeByte(ARRAY_CONTAINER);
+            out.writeInt(cardinality);
+            for (int i = start; i < end; i++) {
+                out.writeChar(docIds[i] & 0xFFFF);
+            }
+        } else {
+            out.writeByte(BITMAP_CONTAINER);
+            long[] words = new long[1024];
+            for (int i = start; i < end; i++) {
+                int low = docIds[i] & 0xFFFF;
+                words[low >>> 6] |= 1L << low;
+            }
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+    }
+}
@@ -15,7 +15,8 @@ import java.util.TreeMap;
 
 public class ScoreEvaluation {
     private static List<QrelsEntry> qrels;
-    private static List<ResultEntry> results;
+    // each topic's results in the order they appear in the results file, grouped as they're read
+    private static Map<Integer, List<ResultEntry>> resultsByTopic;
     public static void main(String[] args) {
         if(args.length != 3){
             System.out.println("Please provide both arguements when running the program");
@@ -26,7 +27,7 @@ public class ScoreEvaluation {
         File qrelsFile = new File(args[1]);
         String evaluation = args[2];
         qrels = new ArrayList<QrelsEntry>();
-        results = new ArrayList<ResultEntry>();
+        resultsByTopic = new HashMap<Integer, List<ResultEntry>>();
 
         loadQrels(qrelsFile.toString());
         loadResults(resultsFile.toString());
@@ -51,7 +52,7 @@ public class ScoreEvaluation {
                 String runID = parts[5];                     
 
                 ResultEntry entry = new ResultEntry(topicId, q, docId, rank, score, runID);
-                results.add(entry);
+                resultsByTopic.computeIfAbsent(topicId, k -> new ArrayList<>()).add(entry);
             }
         } catch (NumberFormatException e){
             System.err.println("Error reading results file, improper format ");
@@ -89,7 +90,7 @@ public class ScoreEvaluation {
     
         file.getParentFile().mkdirs();
     
-        Map<Integer, Map<String, Integer>> relevanceMap = buildRelevanceMap();
+        Map<Integer, TopicQrels> relevanceMap = buildRelevanceMap();
     
         // Collect scores in separate lists
         List<String> apScores = new ArrayList<>();
@@ -98,47 +99,38 @@ public class ScoreEvaluation {
         List<String> precisionScores = new ArrayList<>();
     
         // Calculate scores for each topic and collect them
-        for (Map.Entry<Integer, Map<String, Integer>> entry : relevanceMap.entrySet()) {
+        for (Map.Entry<Integer, TopicQrels> entry : relevanceMap.entrySet()) {
             int topicId = entry.getKey();
-            Map<String, Integer> relMap = entry.getValue();
     
-            List<ResultEntry> topicResults = getTopicResults(topicId);
+            List<ResultEntry> topicResults = resultsByTopic.getOrDefault(topicId, Collections.emptyList());
     
-            // Calculate each score
-            double precisionAt10 = calculatePrecisionAtK(topicResults, relMap, 10);
-            double averagePrecision = calculateAveragePrecision(topicResults, relMap);
-            double ndcgAt10 = calculateNDCG(topicResults, relMap, 10);
-            double ndcgAt1000 = calculateNDCG(topicResults, relMap, 1000);
+            // Calculate every score in one walk over the topic's results
+            TopicScores scores = calculateTopicScores(topicResults, entry.getValue());
     
-            apScores.add(formatScore("ap", topicId, averagePrecision));
-            ndcgAt10Scores.add(formatScore("ndcg_cut_10", topicId, ndcgAt10));
-            ndcgAt1000Scores.add(formatScore("ndcg_cut_1000", topicId, ndcgAt1000));
-            precisionScores.add(formatScore("P_10", topicId, precisionAt10));
+            apScores.add(formatScore("ap", topicId, scores.getAveragePrecision()));
+            ndcgAt10Scores.add(formatScore("ndcg_cut_10", topicId, scores.getNdcgAt10()));
+            ndcgAt1000Scores.add(formatScore("ndcg_cut_1000", topicId, scores.getNdcgAt1000()));
+            precisionScores.add(formatScore("P_10", topicId, scores.getPrecisionAt10()));
         }
     
         writeScoresToFile(evaluationPath, apScores, ndcgAt10Scores, ndcgAt1000Scores, precisionScores);
         System.out.println("Scores written");
     }
 
-    private static Map<Integer, Map<String, Integer>> buildRelevanceMap() {
-        Map<Integer, Map<String, Integer>> relevanceMap = new TreeMap<>();
+    private static Map<Integer, TopicQrels> buildRelevanceMap() {
+        Map<Integer, Map<String, Integer>> judgments = new TreeMap<>();
         // Each topicID has an associated map, storing docno and judgment
         for (QrelsEntry qrelsEntry : qrels) {
-            relevanceMap
+            judgments
                 .computeIfAbsent(qrelsEntry.getTopicID(), k -> new HashMap<>())
                 .put(qrelsEntry.getDocno(), qrelsEntry.getJudgment());
         }
-        return relevanceMap;
-    }
 
-    private static List<ResultEntry> getTopicResults(int topicId) {
-        List<ResultEntry> topicResults = new ArrayList<>();
-        for (ResultEntry result : results) {
-            if (result.getTopicID() == topicId) {
-                topicResults.add(result);
-            }
+        Map<Integer, TopicQrels> relevanceMap = new TreeMap<>();
+        for (Map.Entry<Integer, Map<String, Integer>> entry : judgments.entrySet()) {
+            relevanceMap.put(entry.getKey(), new TopicQrels(entry.getValue(), 1000));
         }
-        return topicResults;
+        return relevanceMap;
     }
     
     private static String formatScore(String scoreType, int topicId, double scoreValue) {
@@ -171,69 +163,117 @@ public class ScoreEvaluation {
         }
     }
 
-    public static double calculateAveragePrecision(List<ResultEntry> results, Map<String, Integer> relevanceMap) {
+    // AP, P@10, nDCG@10 and nDCG@1000 of one topic from a single pass over its ranked results
+    private static TopicScores calculateTopicScores(List<ResultEntry> results, TopicQrels topicQrels) {
         int relevantCount = 0;
         double sumPrecision = 0.0;
-    
+        int relevantAt10 = 0;
+        double dcgAt10 = 0.0;
+        double dcgAt1000 = 0.0;
+
         for (int i = 0; i < results.size(); i++) {
-            ResultEntry result = results.get(i);
-            
-            if (relevanceMap.containsKey(result.getDocNo()) && relevanceMap.get(result.getDocNo()) > 0) {
+            int relevance = topicQrels.getRelevance(results.get(i).getDocNo());
+            double gain = 0.0;
+            if (relevance > 0) {
+                gain = 1.0;
                 relevantCount++;
                 double precisionAtK = (double) relevantCount / (i + 1);
                 sumPrecision += precisionAtK;
             }
+
+            double discount = Math.log(i + 2) / Math.log(2);
+            if (i < 10) {
+                relevantAt10 = relevantCount;
+                dcgAt10 += gain / discount;
+            }
+            if (i < 1000) {
+                dcgAt1000 += gain / discount;
+            }
         }
-    
-        int totalRelevantItems = (int) relevanceMap.values().stream().filter(judgment -> judgment > 0).count();
-        return sumPrecision / totalRelevantItems;
+
+        double averagePrecision = sumPrecision / topicQrels.getRelevantCount();
+        double precisionAt10 = (double) relevantAt10 / 10;
+        return new TopicScores(averagePrecision, precisionAt10,
+            normalize(dcgAt10, topicQrels.getIdealDcg(10)), normalize(dcgAt1000, topicQrels.getIdealDcg(1000)));
     }
 
-    private static double calculatePrecisionAtK(List<ResultEntry> results, Map<String, Integer> relevanceMap, int k) {
-        int relevantCount = 0;
-        for (int i = 0; i < Math.min(k, results.size()); i++) {
-            if (relevanceMap.containsKey(results.get(i).getDocNo()) && relevanceMap.get(results.get(i).getDocNo()) > 0) {
-                relevantCount++;
-            }
+    private static double normalize(double dcg, double idcg) {
+        if(idcg == 0){
+            return 0.0;
         }
-        return (double) relevantCount / k;
+
+        return dcg / idcg;
     }
+}
 
-    private static double calculateNDCG(List<ResultEntry> results, Map<String, Integer> relevanceMap, int k) {
-        double dcg = 0.0;
-        double idcg = 0.0;
+// The judgments of one topic, with the totals every run is measured against worked out once:
+// the number of relevant documents and the ideal DCG at each cutoff
+class TopicQrels {
+    private Map<String, Integer> judgments;
+    private int relevantCount;
+    // idealDcg[k] is the ideal DCG of the first k ranks
+    private double[] idealDcg;
 
-        List<Integer> relevanceList = new ArrayList<>(relevanceMap.values());
-        relevanceList.sort(Collections.reverseOrder());
+    public TopicQrels(Map<String, Integer> judgments, int maxCutoff) {
+        this.judgments = judgments;
+        this.relevantCount = (int) judgments.values().stream().filter(judgment -> judgment > 0).count();
 
-        //dcg
-        for (int i = 0; i < Math.min(k, results.size()); i++) {
-            ResultEntry result = results.get(i);
-            int relevance = relevanceMap.getOrDefault(result.getDocNo(), 0);
-            double gain = 0.0;
-            if(relevance > 0){
-                gain = 1.0;
-            }
-            double discount = Math.log(i + 2) / Math.log(2);
-            dcg += gain / discount;
-        }
+        List<Integer> relevanceList = new ArrayList<>(judgments.values());
+        relevanceList.sort(Collections.reverseOrder());
 
-        //idcg
-        for (int i = 0; i < Math.min(k, relevanceList.size()); i++) {
+        int ranks = Math.min(maxCutoff, relevanceList.size());
+        idealDcg = new double[ranks + 1];
+        for (int i = 0; i < ranks; i++) {
             int idealRelevance = relevanceList.get(i);
             double idealGain = 0.0;
             if(idealRelevance == 1){
                 idealGain = 1.0;
             }
             double discount = Math.log(i + 2) / Math.log(2);
-            idcg += idealGain / discount;
+            idealDcg[i + 1] = idealDcg[i] + idealGain / discount;
         }
+    }
 
-        if(idcg == 0){
-            return 0.0;
-        }
+    public int getRelevance(String docNo) {
+        return judgments.getOrDefault(docNo, 0);
+    }
 
-        return dcg / idcg;
+    public int getRelevantCount() {
+        return relevantCount;
+    }
+
+    public double getIdealDcg(int k) {
+        return idealDcg[Math.min(k, idealDcg.length - 1)];
+    }
+}
+
+class TopicScores {
+    private double averagePrecision;
+    private double precisionAt10;
+    private double ndcgAt10;
+    private double ndcgAt1000;
+
+    public TopicScores(double averagePrecision, double precisionAt10, double ndcgAt10, double ndcgAt1000) {
+        this.averagePrecision = averagePrecision;
+        this.precisionAt10 = precisionAt10;
+        this.ndcgAt10 = ndcgAt10;
+        this.ndcgAt1000 = ndcgAt1000;
+    }
+
+    public double getAveragePrecision() {
+        return averagePrecision;
+    }
+
+    public double getPrecisionAt10() {
+        return precisionAt10;
+    }
+
+    public double getNdcgAt10() {
+        return ndcgAt10;
+    }
+
+    public double getNdcgAt1000() {
+        return ndcgAt1000;
     }
 }
 
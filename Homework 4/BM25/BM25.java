@@ -3,31 +3,53 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.ToDoubleFunction;
 import java.util.stream.Collectors;
 
 public class BM25{
-    private static Map<Integer, List<DocIdCountPair>> invertedIndex;
-    private static Map<Integer, DocumentMetadata> documentMetadata;
-    private static Map<String, Integer> lexicon; 
     private static Map<Integer, String> queries;
-    private static Map<Integer, Integer> docLengths;
     private static String typeOfRun;
 
-    private static double avgDocLength;
-    private static int totalDocs;
+    // number of worker threads used to run the topics, set with --threads=N
+    private static int numThreads = 1;
+    // postings are read from disk on demand instead of loading the whole index, set with --disk-index
+    private static boolean diskResident = false;
+    // memory bound of the decoded postings cache used by the disk index, set with --postings-cache-mb=N
+    private static long postingsCacheBytes = 64L * 1024 * 1024;
+    // k1 and b values of a parameter sweep, set with --sweep-k1=a,b,c and --sweep-b=x,y,z
+    private static double[] sweepK1s;
+    private static double[] sweepBs;
 
     public static void main(String[] args) throws IOException {
 
-        if (args.length != 5) {
+        if (args.length < 5) {
             System.out.println("Please use all 5 arguements when running the program");
             System.exit(1);
         }
+
+        for (int i = 5; i < args.length; i++) {
+            parseOption(args[i]);
+        }
         
         String indexDirectory = args[0];
         String queriesFile = args[1];
@@ -59,57 +81,118 @@ public class BM25{
             System.exit(1);
         }        
 
-        //read the index
-        invertedIndex = loadInvertedIndex(indexDirectory);
-        //read the lexicon
-        lexicon = loadLexicon(indexDirectory);
-        // read all metadata
-        documentMetadata = loadDocumentMetadata(indexDirectory);
+        // read the index, lexicon, metadata and doc lengths
+        PostingsCache postingsCache = diskResident ? new PostingsCache(postingsCacheBytes) : null;
+        IndexReader reader = IndexReader.open(indexDirectory, docLengthsFile, typeOfRun, postingsCache);
         // read all the queries
         queries = loadQueries(queriesFile);
-        // doc lengths
-        docLengths = loadDocLengths(docLengthsFile);
-        // total docs
-        totalDocs = documentMetadata.size();
-        // avg doc lengths
-        avgDocLength = loadAverageDocLengths();
 
         // perform BM25, and print results file
-        generateBM25Results(outputFile);
+        if (sweepK1s != null || sweepBs != null) {
+            generateBM25SweepResults(reader, outputFile);
+        } else {
+            generateBM25Results(reader, outputFile);
+        }
+
+        if (postingsCache != null) {
+            System.out.println("Postings cache: " + postingsCache.getHits() + " hits, " + postingsCache.getMisses() + " misses, "
+                + String.format("%.1f", postingsCache.getHitRate() * 100) + "% hit rate");
+        }
+        reader.close();
     }
 
-    private static void generateBM25Results(String outputFile){
+    private static void parseOption(String option) {
+        try {
+            if (option.startsWith("--threads=")) {
+                numThreads = Integer.parseInt(option.substring("--threads=".length()));
+                if (numThreads < 1) {
+                    System.err.println("Number of threads must be at least 1.");
+                    System.exit(1);
+                }
+                return;
+            }
+            if (option.startsWith("--sweep-k1=")) {
+                sweepK1s = parseDoubleList(option.substring("--sweep-k1=".length()));
+                return;
+            }
+            if (option.startsWith("--sweep-b=")) {
+                sweepBs = parseDoubleList(option.substring("--sweep-b=".length()));
+                return;
+            }
+            if (option.equals("--disk-index")) {
+                diskResident = true;
+                return;
+            }
+            if (option.startsWith("--postings-cache-mb=")) {
+                postingsCacheBytes = Long.parseLong(option.substring("--postings-cache-mb=".length())) * 1024 * 1024;
+                if (postingsCacheBytes < 0) {
+                    System.err.println("Postings cache size can't be negative.");
+                    System.exit(1);
+                }
+                return;
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for option: " + option);
+            System.exit(1);
+        }
+        System.err.println("Unknown option: " + option);
+        System.exit(1);
+    }
+
+    private static double[] parseDoubleList(String list) {
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static List<String> getQueryTokens(String query){
+        List<String> queryTokens = splitQueryIntoTokens(query);
+
+        if(typeOfRun.equals("stem")){
+            queryTokens = queryTokens.stream()
+            .map(PorterStemmer::stem)
+            .collect(Collectors.toList());
+        }
+        return queryTokens;
+    }
+
+    // every worker thread gets its own searcher, which keeps its scratch buffers between topics
+    private static ThreadLocal<Searcher> searcherPerThread(IndexReader reader){
+        return ThreadLocal.withInitial(() -> new Searcher(reader));
+    }
+
+    private static void generateBM25Results(IndexReader reader, String outputFile){
         String runTag = typeOfRun.equals("stem") ? "v3su_bm25_stem" : "v3su_bm25_baseline";
         List<ResultEntry> results = new ArrayList<>();
+        ThreadLocal<Searcher> searchers = searcherPerThread(reader);
+
+        // the index is read only at this point, so every topic can be ranked on its own thread
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<List<ResultEntry>>> topicResults = new ArrayList<>();
 
         for (Map.Entry<Integer, String> queryEntry : queries.entrySet()){
             int topicID = queryEntry.getKey();
-            List<String> queryTokens = splitQueryIntoTokens(queryEntry.getValue());
-        
-            if(typeOfRun.equals("stem")){
-                queryTokens = queryTokens.stream()
-                .map(PorterStemmer::stem)
-                .collect(Collectors.toList());
-            }
-            Map<Integer, Double> scores = calculateBM25(queryTokens, topicID);
-
-            // after calculating BM25, sort scores in descending order
-            List<Map.Entry<Integer, Double>> rankedDocs = scores.entrySet().stream()
-            .sorted((a, b) -> {
-                int cmp = Double.compare(b.getValue(), a.getValue());
-                if (cmp != 0) return cmp;
-                return documentMetadata.get(a.getKey()).getDocNo()
-                        .compareTo(documentMetadata.get(b.getKey()).getDocNo());
-            })
-            .limit(1000)
-            .collect(Collectors.toList());
+            String query = queryEntry.getValue();
+            topicResults.add(pool.submit(() -> rankTopic(searchers.get(), topicID, query, runTag)));
+        }
 
-            int rank = 1;
-            // Populate results with ranked documents for this query
-            for (Map.Entry<Integer, Double> entry : rankedDocs) {
-                ResultEntry result = new ResultEntry(topicID, "Q0", documentMetadata.get(entry.getKey()).getDocNo() , rank++, entry.getValue(), runTag);
-                results.add(result);
+        // collect in the same order as the queries file so the run file stays deterministic
+        try {
+            for (Future<List<ResultEntry>> topicResult : topicResults) {
+                results.addAll(topicResult.get());
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted while ranking topics");
+            return;
+        } catch (ExecutionException e) {
+            System.err.println("Error ranking topic: " + e.getCause());
+            return;
+        } finally {
+            pool.shutdown();
         }
 
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile))) {
@@ -120,31 +203,103 @@ public class BM25{
         }
     }
 
-    private static Map<Integer, Double> calculateBM25(List<String> queryTokens, int topicID){
-        Map<Integer, Double> scores = new HashMap<>();
-        double k1 = 1.2;
-        double b = 0.75;
+    private static List<ResultEntry> rankTopic(Searcher searcher, int topicID, String query, String runTag){
+        List<ResultEntry> results = new ArrayList<>();
+        List<Map.Entry<Integer, Double>> rankedDocs = searcher.search(getQueryTokens(query), 1000);
 
-            for (String term : queryTokens) {
-                if (!lexicon.containsKey(term)) continue; // Skip terms not in the lexicon
-                int termID = lexicon.get(term);
-    
-                List<DocIdCountPair> postingsList = invertedIndex.getOrDefault(termID, new ArrayList<>());
-                int n_t = postingsList.size();
-                double idf = Math.log((totalDocs - n_t + 0.5) / (n_t + 0.5));
-    
-                for (DocIdCountPair pair : postingsList) {
-                    int docID = pair.getDocId();
-                    int f_td = pair.getCount();
-                    int docLength = docLengths.get(docID);
-    
-                    double bm25Score = idf * ((f_td) / (f_td + (k1 * (1 - b + b * (docLength / avgDocLength)))));
-                    scores.put(docID, scores.getOrDefault(docID, 0.0) + bm25Score);
+        int rank = 1;
+        // Populate results with ranked documents for this query
+        for (Map.Entry<Integer, Double> entry : rankedDocs) {
+            String docNo = searcher.getReader().getMetadata(entry.getKey()).getDocNo();
+            results.add(new ResultEntry(topicID, "Q0", docNo, rank++, entry.getValue(), runTag));
+        }
+
+        return results;
+    }
+
+    // Runs every (k1, b) pair of the sweep grid in one pass over each query's postings,
+    // and writes one run file per pair
+    private static void generateBM25SweepResults(IndexReader reader, String outputFile){
+        double[] k1s = sweepK1s != null ? sweepK1s : new double[] {1.2};
+        double[] bs = sweepBs != null ? sweepBs : new double[] {0.75};
+        int gridSize = k1s.length * bs.length;
+        double[] gridK1 = new double[gridSize];
+        double[] gridB = new double[gridSize];
+        String[] runTags = new String[gridSize];
+        String baseTag = typeOfRun.equals("stem") ? "v3su_bm25_stem" : "v3su_bm25_baseline";
+        for (int i = 0; i < k1s.length; i++) {
+            for (int j = 0; j < bs.length; j++) {
+                int g = i * bs.length + j;
+                gridK1[g] = k1s[i];
+                gridB[g] = bs[j];
+                runTags[g] = baseTag + "_k1_" + k1s[i] + "_b_" + bs[j];
+            }
+        }
+
+        ThreadLocal<Searcher> searchers = searcherPerThread(reader);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        List<Future<List<List<ResultEntry>>>> topicResults = new ArrayList<>();
+
+        for (Map.Entry<Integer, String> queryEntry : queries.entrySet()){
+            int topicID = queryEntry.getKey();
+            String query = queryEntry.getValue();
+            topicResults.add(pool.submit(() -> rankTopicSweep(searchers.get(), topicID, query, gridK1, gridB, runTags)));
+        }
+
+        List<List<ResultEntry>> results = new ArrayList<>();
+        for (int g = 0; g < gridSize; g++) {
+            results.add(new ArrayList<>());
+        }
+        try {
+            for (Future<List<List<ResultEntry>>> topicResult : topicResults) {
+                List<List<ResultEntry>> perSetting = topicResult.get();
+                for (int g = 0; g < gridSize; g++) {
+                    results.get(g).addAll(perSetting.get(g));
                 }
-    
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Interrupted while ranking topics");
+            return;
+        } catch (ExecutionException e) {
+            System.err.println("Error ranking topic: " + e.getCause());
+            return;
+        } finally {
+            pool.shutdown();
+        }
 
-        return scores;
+        for (int g = 0; g < gridSize; g++) {
+            writeToFile(results.get(g), getSweepOutputFile(outputFile, gridK1[g], gridB[g]));
+        }
+        System.out.println("Finished Retrieval for " + gridSize + " parameter settings");
+    }
+
+    // results.txt becomes results-k1_1.2-b_0.75.txt
+    private static String getSweepOutputFile(String outputFile, double k1, double b){
+        String suffix = "-k1_" + k1 + "-b_" + b;
+        int dot = outputFile.lastIndexOf('.');
+        int slash = outputFile.lastIndexOf(File.separatorChar);
+        if (dot > slash + 1) {
+            return outputFile.substring(0, dot) + suffix + outputFile.substring(dot);
+        }
+        return outputFile + suffix;
+    }
+
+    private static List<List<ResultEntry>> rankTopicSweep(Searcher searcher, int topicID, String query, double[] gridK1, double[] gridB, String[] runTags){
+        List<List<Map.Entry<Integer, Double>>> rankedPerSetting = searcher.searchSweep(getQueryTokens(query), 1000, gridK1, gridB);
+
+        List<List<ResultEntry>> results = new ArrayList<>();
+        for (int g = 0; g < rankedPerSetting.size(); g++) {
+            List<ResultEntry> settingResults = new ArrayList<>();
+            int rank = 1;
+            for (Map.Entry<Integer, Double> entry : rankedPerSetting.get(g)) {
+                String docNo = searcher.getReader().getMetadata(entry.getKey()).getDocNo();
+                settingResults.add(new ResultEntry(topicID, "Q0", docNo, rank++, entry.getValue(), runTags[g]));
+            }
+            results.add(settingResults);
+        }
+
+        return results;
     }
 
     private static void writeToFile(List<ResultEntry> results, String outputFile) {
@@ -158,7 +313,136 @@ public class BM25{
         }
     }
 
-    private static double loadAverageDocLengths(){
+    private static Map<Integer, String> loadQueries(String queriesFile) {
+        Map<Integer, String> queries = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(queriesFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String topicNumber = line.trim();
+                if ((line = reader.readLine()) != null) {
+                    String query = line.trim();
+                    queries.put(Integer.parseInt(topicNumber), query);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading queries file: " + e.getMessage());
+        }
+        return queries;
+    }
+
+    private static List<String> splitQueryIntoTokens(String query) {
+        List<String> tokens = new ArrayList<>();
+        query = query.toLowerCase();
+
+        int start = 0;
+        int i;
+
+        for (i = 0; i < query.length(); ++i) {
+            char c = query.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                if (start != i) {
+                    String token = query.substring(start, i);
+                    tokens.add(token);
+                }
+                start = i + 1;
+            }
+        }
+
+        if (start != i) {
+            tokens.add(query.substring(start, i));
+        }
+
+        return tokens; 
+    }
+
+}
+
+// Everything a query needs from the index: lexicon, postings, doc lengths and metadata.
+// Nothing is written after open() returns, so any number of threads can share one reader
+class IndexReader {
+    private final Map<Integer, List<DocIdCountPair>> invertedIndex;
+    private final DiskInvertedIndex diskIndex;
+    private final Map<Integer, DocumentMetadata> documentMetadata;
+    private final Map<String, Integer> lexicon;
+    private final Map<Integer, Integer> docLengths;
+    private final int totalDocs;
+    private final double avgDocLength;
+
+    private IndexReader(Map<Integer, List<DocIdCountPair>> invertedIndex, DiskInvertedIndex diskIndex,
+            Map<Integer, DocumentMetadata> documentMetadata, Map<String, Integer> lexicon, Map<Integer, Integer> docLengths) {
+        this.invertedIndex = invertedIndex == null ? null : Collections.unmodifiableMap(invertedIndex);
+        this.diskIndex = diskIndex;
+        this.documentMetadata = Collections.unmodifiableMap(documentMetadata);
+        this.lexicon = Collections.unmodifiableMap(lexicon);
+        this.docLengths = Collections.unmodifiableMap(docLengths);
+        this.totalDocs = documentMetadata.size();
+        this.avgDocLength = loadAverageDocLengths(docLengths);
+    }
+
+    // postingsCache is only used, and the postings are only left on disk, when it isn't null
+    public static IndexReader open(String indexDirectory, String docLengthsFile, String typeOfRun, PostingsCache postingsCache) throws IOException {
+        //read the index
+        Map<Integer, List<DocIdCountPair>> invertedIndex = null;
+        DiskInvertedIndex diskIndex = null;
+        if (postingsCache != null) {
+            diskIndex = new DiskInvertedIndex(getInvertedIndexPath(indexDirectory, typeOfRun), postingsCache);
+        } else {
+            invertedIndex = loadInvertedIndex(indexDirectory, typeOfRun);
+        }
+        //read the lexicon
+        Map<String, Integer> lexicon = loadLexicon(indexDirectory, typeOfRun);
+        // read all metadata
+        Map<Integer, DocumentMetadata> documentMetadata = loadDocumentMetadata(indexDirectory);
+        // doc lengths
+        Map<Integer, Integer> docLengths = loadDocLengths(docLengthsFile);
+
+        return new IndexReader(invertedIndex, diskIndex, documentMetadata, lexicon, docLengths);
+    }
+
+    public Integer getTermId(String term) {
+        return lexicon.get(term);
+    }
+
+    public List<DocIdCountPair> getPostings(int termID){
+        if (diskIndex != null) {
+            try {
+                return diskIndex.getPostings(termID);
+            } catch (IOException e) {
+                System.err.println("Error reading postings for term " + termID + ": " + e.getMessage());
+                return new ArrayList<>();
+            }
+        }
+        return invertedIndex.getOrDefault(termID, new ArrayList<>());
+    }
+
+    public DocumentMetadata getMetadata(int docId) {
+        return documentMetadata.get(docId);
+    }
+
+    public int getDocLength(int docId) {
+        return docLengths.get(docId);
+    }
+
+    // internal ids run from 1 to this number
+    public int getMaxDocId() {
+        return docLengths.size();
+    }
+
+    public int getTotalDocs() {
+        return totalDocs;
+    }
+
+    public double getAvgDocLength() {
+        return avgDocLength;
+    }
+
+    public void close() throws IOException {
+        if (diskIndex != null) {
+            diskIndex.close();
+        }
+    }
+
+    private static double loadAverageDocLengths(Map<Integer, Integer> docLengths){
         int totalLength = 0;
         for(int docId : docLengths.keySet()){
             totalLength += docLengths.get(docId);
@@ -187,24 +471,7 @@ public class BM25{
         return docLengths;
     }
 
-    private static Map<Integer, String> loadQueries(String queriesFile) {
-        Map<Integer, String> queries = new LinkedHashMap<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(queriesFile))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String topicNumber = line.trim();
-                if ((line = reader.readLine()) != null) {
-                    String query = line.trim();
-                    queries.put(Integer.parseInt(topicNumber), query);
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Error reading queries file: " + e.getMessage());
-        }
-        return queries;
-    }
-
-    private static Map<String, Integer> loadLexicon(String indexPath) {
+    private static Map<String, Integer> loadLexicon(String indexPath, String typeOfRun) {
         Map<String, Integer> lexicon = new HashMap<>();
         
         String lexiconPath = "";
@@ -232,16 +499,17 @@ public class BM25{
         return lexicon;
     }
 
-
-    private static Map<Integer, List<DocIdCountPair>> loadInvertedIndex(String indexPath) {
-        Map<Integer, List<DocIdCountPair>> index = new HashMap<>();
-        String invertedIndexPath = "";
-
+    private static String getInvertedIndexPath(String indexPath, String typeOfRun) {
         if(typeOfRun.equals("baseline")){
-            invertedIndexPath = indexPath + "/invertedIndex/invertedIndex.txt";
+            return indexPath + "/invertedIndex/invertedIndex.txt";
         }else{
-            invertedIndexPath = indexPath + "/invertedIndex/stemmedInvertedIndex.txt";
+            return indexPath + "/invertedIndex/stemmedInvertedIndex.txt";
         }
+    }
+
+    private static Map<Integer, List<DocIdCountPair>> loadInvertedIndex(String indexPath, String typeOfRun) {
+        Map<Integer, List<DocIdCountPair>> index = new HashMap<>();
+        String invertedIndexPath = getInvertedIndexPath(indexPath, typeOfRun);
 
         try (BufferedReader reader = new BufferedReader(new FileReader(invertedIndexPath))) {
             String line;
@@ -310,32 +578,119 @@ public class BM25{
 
         return metadataMap;
     }
+}
 
-    private static List<String> splitQueryIntoTokens(String query) {
-        List<String> tokens = new ArrayList<>();
-        query = query.toLowerCase();
+// Runs queries against a shared IndexReader. A searcher owns the scratch buffers a query
+// scores into, so it's cheap to reuse but must only be used by one thread at a time
+class Searcher {
+    private final IndexReader reader;
+    private ScoreAccumulator scores;
+    private SweepAccumulator sweepScores;
 
-        int start = 0;
-        int i;
+    public Searcher(IndexReader reader) {
+        this.reader = reader;
+    }
 
-        for (i = 0; i < query.length(); ++i) {
-            char c = query.charAt(i);
-            if (!Character.isLetterOrDigit(c)) {
-                if (start != i) {
-                    String token = query.substring(start, i);
-                    tokens.add(token);
+    public IndexReader getReader() {
+        return reader;
+    }
+
+    // top k documents by BM25 score, ties broken by docno
+    public List<Map.Entry<Integer, Double>> search(List<String> queryTokens, int k){
+        if (scores == null) {
+            scores = new ScoreAccumulator(reader.getMaxDocId() + 1);
+        }
+        calculateBM25(queryTokens, scores);
+
+        // after calculating BM25, sort scores in descending order
+        ScoreAccumulator queryScores = scores;
+        List<Map.Entry<Integer, Double>> rankedDocs = scores.getTouchedDocs().stream()
+        .sorted(rankingOrder(docId -> queryScores.get(docId)))
+        .limit(k)
+        .map(docId -> Map.entry(docId, queryScores.get(docId)))
+        .collect(Collectors.toList());
+        scores.clear();
+
+        return rankedDocs;
+    }
+
+    // top k documents for every (k1, b) grid point, from one pass over the postings
+    public List<List<Map.Entry<Integer, Double>>> searchSweep(List<String> queryTokens, int k, double[] gridK1, double[] gridB){
+        int gridSize = gridK1.length;
+        if (sweepScores == null || sweepScores.getGridSize() != gridSize) {
+            sweepScores = new SweepAccumulator(reader.getMaxDocId() + 1, gridSize);
+        }
+
+        for (String term : queryTokens) {
+            Integer termID = reader.getTermId(term);
+            if (termID == null) continue; // Skip terms not in the lexicon
+
+            List<DocIdCountPair> postingsList = reader.getPostings(termID);
+            int n_t = postingsList.size();
+            double idf = Math.log((reader.getTotalDocs() - n_t + 0.5) / (n_t + 0.5));
+
+            // the postings are walked once, every posting is scored for all grid points
+            for (DocIdCountPair pair : postingsList) {
+                int docID = pair.getDocId();
+                int f_td = pair.getCount();
+                double lengthRatio = reader.getDocLength(docID) / reader.getAvgDocLength();
+
+                int base = sweepScores.slot(docID);
+                for (int g = 0; g < gridSize; g++) {
+                    double k1 = gridK1[g];
+                    double b = gridB[g];
+                    sweepScores.add(base + g, idf * ((f_td) / (f_td + (k1 * (1 - b + b * lengthRatio)))));
                 }
-                start = i + 1;
             }
         }
 
-        if (start != i) {
-            tokens.add(query.substring(start, i));
+        List<List<Map.Entry<Integer, Double>>> results = new ArrayList<>();
+        for (int g = 0; g < gridSize; g++) {
+            int setting = g;
+            SweepAccumulator queryScores = sweepScores;
+            results.add(sweepScores.getTouchedDocs().stream()
+            .sorted(rankingOrder(docId -> queryScores.get(docId, setting)))
+            .limit(k)
+            .map(docId -> Map.entry(docId, queryScores.get(docId, setting)))
+            .collect(Collectors.toList()));
         }
+        sweepScores.clear();
 
-        return tokens; 
+        return results;
+    }
+
+    private Comparator<Integer> rankingOrder(ToDoubleFunction<Integer> score){
+        return (a, b) -> {
+            int cmp = Double.compare(score.applyAsDouble(b), score.applyAsDouble(a));
+            if (cmp != 0) return cmp;
+            return reader.getMetadata(a).getDocNo()
+                    .compareTo(reader.getMetadata(b).getDocNo());
+        };
     }
 
+    private void calculateBM25(List<String> queryTokens, ScoreAccumulator scores){
+        double k1 = 1.2;
+        double b = 0.75;
+
+            for (String term : queryTokens) {
+                Integer termID = reader.getTermId(term);
+                if (termID == null) continue; // Skip terms not in the lexicon
+    
+                List<DocIdCountPair> postingsList = reader.getPostings(termID);
+                int n_t = postingsList.size();
+                double idf = Math.log((reader.getTotalDocs() - n_t + 0.5) / (n_t + 0.5));
+    
+                for (DocIdCountPair pair : postingsList) {
+                    int docID = pair.getDocId();
+                    int f_td = pair.getCount();
+                    int docLength = reader.getDocLength(docID);
+    
+                    double bm25Score = idf * ((f_td) / (f_td + (k1 * (1 - b + b * (docLength / reader.getAvgDocLength())))));
+                    scores.add(docID, bm25Score);
+                }
+    
+            }
+    }
 }
 
 class DocIdCountPair {
@@ -369,6 +724,319 @@ class DocIdCountPair {
     }
 }
 
+class PostingsLocation {
+    private long offset;
+    private int length;
+    private int df;
+
+    public PostingsLocation(long offset, int length, int df) {
+        this.offset = offset;
+        this.length = length;
+        this.df = df;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getDf() {
+        return df;
+    }
+}
+
+// Inverted index left on disk. Only the byte range of every term's postings is kept in memory,
+// and postings are decoded when a query needs them, through the postings cache
+class DiskInvertedIndex {
+    private final FileChannel channel;
+    private final Map<Integer, PostingsLocation> locations;
+    private final PostingsCache cache;
+
+    public DiskInvertedIndex(String invertedIndexPath, PostingsCache cache) throws IOException {
+        this.channel = FileChannel.open(Paths.get(invertedIndexPath), StandardOpenOption.READ);
+        this.locations = scanLocations(invertedIndexPath);
+        this.cache = cache;
+    }
+
+    public PostingsCache getCache() {
+        return cache;
+    }
+
+    public List<DocIdCountPair> getPostings(int termId) throws IOException {
+        List<DocIdCountPair> postings = cache.get(termId);
+        if (postings != null) {
+            return postings;
+        }
+        PostingsLocation location = locations.get(termId);
+        if (location == null) {
+            return new ArrayList<>();
+        }
+        postings = decode(location);
+        cache.put(termId, postings, location.getDf());
+        return postings;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // positional reads don't move the channel position, so concurrent queries can share the channel
+    private List<DocIdCountPair> decode(PostingsLocation location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.getLength());
+        long position = location.getOffset();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) break;
+        }
+
+        List<DocIdCountPair> postings = new ArrayList<>(location.getDf());
+        String block = new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+        for (String line : block.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("DocID:")) {
+                String[] parts = line.split(",");
+                int docId = Integer.parseInt(parts[0].split(":")[1].trim());
+                int count = Integer.parseInt(parts[1].split(":")[1].trim());
+                postings.add(new DocIdCountPair(docId, count));
+            }
+        }
+        return postings;
+    }
+
+    // one sequential pass over the index file, remembering where every term's postings start and end
+    private static Map<Integer, PostingsLocation> scanLocations(String invertedIndexPath) throws IOException {
+        Map<Integer, PostingsLocation> locations = new HashMap<>();
+        try (InputStream in = new FileInputStream(invertedIndexPath)) {
+            byte[] buffer = new byte[1 << 16];
+            StringBuilder termLine = new StringBuilder();
+            long position = 0;
+            long lineStart = 0;
+            // first non blank character of the current line, 0 until one is seen
+            int lineKind = 0;
+            Integer currentTermId = null;
+            long postingsStart = 0;
+            int df = 0;
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    byte c = buffer[i];
+                    position++;
+                    if (c != '\n') {
+                        if (lineKind == 0 && c != ' ' && c != '\t' && c != '\r') {
+                            lineKind = c;
+                        }
+                        if (lineKind == 'T') {
+                            termLine.append((char) c);
+                        }
+                        continue;
+                    }
+
+                    if (lineKind == 'T') {
+                        currentTermId = Integer.parseInt(termLine.toString().split(":")[1].trim());
+                        postingsStart = position;
+                        df = 0;
+                    } else if (lineKind == 'D') {
+                        df++;
+                    } else if (lineKind == '-' && currentTermId != null) {
+                        locations.put(currentTermId, new PostingsLocation(postingsStart, (int) (lineStart - postingsStart), df));
+                        currentTermId = null;
+                    }
+                    termLine.setLength(0);
+                    lineKind = 0;
+                    lineStart = position;
+                }
+            }
+        }
+        return locations;
+    }
+}
+
+// Decoded postings keyed by term id, bounded by an estimated size in bytes. When it's full the entry
+// with the lowest (times queried * df) is evicted first, since a long, popular postings list is the
+// most expensive one to decode again
+class PostingsCache {
+    // estimated heap cost of a DocIdCountPair and the list slot pointing at it
+    private static final long BYTES_PER_POSTING = 32;
+
+    private final long maxBytes;
+    private final Map<Integer, CachedPostings> entries = new HashMap<>();
+    private long currentBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public PostingsCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized List<DocIdCountPair> get(int termId) {
+        CachedPostings cached = entries.get(termId);
+        if (cached == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        cached.timesQueried++;
+        return cached.postings;
+    }
+
+    public synchronized void put(int termId, List<DocIdCountPair> postings, int df) {
+        long size = 64 + BYTES_PER_POSTING * postings.size();
+        if (size > maxBytes || entries.containsKey(termId)) {
+            return;
+        }
+        while (currentBytes + size > maxBytes && !entries.isEmpty()) {
+            evictOne();
+        }
+        entries.put(termId, new CachedPostings(postings, df, size));
+        currentBytes += size;
+    }
+
+    private void evictOne() {
+        Integer victim = null;
+        double lowest = Double.MAX_VALUE;
+        for (Map.Entry<Integer, CachedPostings> entry : entries.entrySet()) {
+            CachedPostings cached = entry.getValue();
+            double priority = (double) cached.timesQueried * cached.df;
+            if (priority < lowest) {
+                lowest = priority;
+                victim = entry.getKey();
+            }
+        }
+        currentBytes -= entries.remove(victim).bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : hits / (double) lookups;
+    }
+
+    private static class CachedPostings {
+        private final List<DocIdCountPair> postings;
+        private final int df;
+        private final long bytes;
+        private long timesQueried = 1;
+
+        CachedPostings(List<DocIdCountPair> postings, int df, long bytes) {
+            this.postings = postings;
+            this.df = df;
+            this.bytes = bytes;
+        }
+    }
+}
+
+// Dense per-thread score array, so ranking a topic doesn't box a score per posting
+class ScoreAccumulator {
+    private double[] scores;
+    private boolean[] seen;
+    private List<Integer> touchedDocs;
+
+    public ScoreAccumulator(int size) {
+        this.scores = new double[size];
+        this.seen = new boolean[size];
+        this.touchedDocs = new ArrayList<>();
+    }
+
+    public void add(int docId, double score) {
+        if (docId >= scores.length) {
+            int newSize = Math.max(docId + 1, scores.length * 2);
+            scores = Arrays.copyOf(scores, newSize);
+            seen = Arrays.copyOf(seen, newSize);
+        }
+        if (!seen[docId]) {
+            seen[docId] = true;
+            touchedDocs.add(docId);
+        }
+        scores[docId] += score;
+    }
+
+    public double get(int docId) {
+        return scores[docId];
+    }
+
+    public List<Integer> getTouchedDocs() {
+        return touchedDocs;
+    }
+
+    // reset only the documents this topic touched
+    public void clear() {
+        for (int docId : touchedDocs) {
+            scores[docId] = 0.0;
+            seen[docId] = false;
+        }
+        touchedDocs.clear();
+    }
+}
+
+// Like ScoreAccumulator, but holds one score per grid point for every touched document,
+// stored next to each other so a posting updates a single stretch of memory. Documents get
+// compact slots as they're touched, so only the docId -> slot table spans the whole collection
+class SweepAccumulator {
+    private final int gridSize;
+    // 1 + the slot of each touched document, 0 for documents this query hasn't touched
+    private int[] slotOf;
+    // gridSize scores per slot, slots handed out in the order documents are touched
+    private double[] scores;
+    private List<Integer> touchedDocs;
+
+    public SweepAccumulator(int size, int gridSize) {
+        this.gridSize = gridSize;
+        this.slotOf = new int[size];
+        this.scores = new double[64 * gridSize];
+        this.touchedDocs = new ArrayList<>();
+    }
+
+    public int getGridSize() {
+        return gridSize;
+    }
+
+    // gives the document a slot the first time it's touched and returns where its grid scores start
+    public int slot(int docId) {
+        if (docId >= slotOf.length) {
+            slotOf = Arrays.copyOf(slotOf, Math.max(docId + 1, slotOf.length * 2));
+        }
+        if (slotOf[docId] == 0) {
+            touchedDocs.add(docId);
+            slotOf[docId] = touchedDocs.size();
+            if (touchedDocs.size() * gridSize > scores.length) {
+                scores = Arrays.copyOf(scores, scores.length * 2);
+            }
+        }
+        return (slotOf[docId] - 1) * gridSize;
+    }
+
+    public void add(int index, double score) {
+        scores[index] += score;
+    }
+
+    public double get(int docId, int setting) {
+        return scores[(slotOf[docId] - 1) * gridSize + setting];
+    }
+
+    public List<Integer> getTouchedDocs() {
+        return touchedDocs;
+    }
+
+    public void clear() {
+        Arrays.fill(scores, 0, touchedDocs.size() * gridSize, 0.0);
+        for (int docId : touchedDocs) {
+            slotOf[docId] = 0;
+        }
+        touchedDocs.clear();
+    }
+}
+
 class DocumentMetadata {
     private String docNo;
     private int internalId;
@@ -1,11 +1,14 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -19,12 +22,20 @@ public class IndexEngine {
     private static Map<Integer, List<DocIdCountPair>> invertedIndex;
     private static List<Integer> docLengths;
     private static String outputPathToFiles;
+    private static DocumentStoreWriter docStoreWriter = null;
+    private static DocumentStoreWriter sentenceStoreWriter = null;
+    // with --no-document-files the raw documents only go into the document store, not one file each
+    private static boolean writeDocumentFiles = true;
     public static void main(String[] args) {
         if (args.length < 2) {
             System.out.println("Error: Two arguments required (inputPath outputPath). Application now exiting.");
             System.exit(1);
         }
     
+        for (int i = 2; i < args.length; i++) {
+            parseOption(args[i]);
+        }
+
         String inputPath = args[0];
         String outputPath = args[1];
 
@@ -42,6 +53,10 @@ public class IndexEngine {
             docLengths = new ArrayList<>();
 
             processGZippedfiles(inputPath, outputPath);
+            if (docStoreWriter != null) {
+                docStoreWriter.close();
+                sentenceStoreWriter.close();
+            }
             //write invertedIndex to file
             writeLexiconToFile(lexicon, outputPathToFiles);
             writeInvertedIndexToFile(invertedIndex, outputPathToFiles);
@@ -56,6 +71,15 @@ public class IndexEngine {
         }
     }
 
+    private static void parseOption(String option) {
+        if (option.equals("--no-document-files")) {
+            writeDocumentFiles = false;
+            return;
+        }
+        System.err.println("Unknown option: " + option);
+        System.exit(1);
+    }
+
     public static void processGZippedfiles(String inputPath, String outputPath) throws FileNotFoundException, IOException{
         File outputFile = new File(outputPath);
         if (outputFile.exists()) {
@@ -63,6 +87,8 @@ public class IndexEngine {
             System.exit(1);
         }
         try{
+            docStoreWriter = new DocumentStoreWriter(outputPath, "docstore");
+            sentenceStoreWriter = new DocumentStoreWriter(outputPath, "sentences");
             InputStream fileStream = new FileInputStream(inputPath);
             InputStream gzipStream = new GZIPInputStream(fileStream);
             Reader decoder = new InputStreamReader(gzipStream);
@@ -94,7 +120,9 @@ public class IndexEngine {
                     docNo = getDocNo(line);
                     dirFilePath = getFilePath(line, outputPath);
                     textFilePath = new File(dirFilePath);
-                    textFilePath.mkdirs();
+                    if (writeDocumentFiles) {
+                        textFilePath.mkdirs();
+                    }
                 }
 
                 // Extract the date
@@ -189,11 +217,18 @@ public class IndexEngine {
         //populate postings list
         populateInvertedIndex(tokens, internalId);
         
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-            writer.write(sb.toString());
-        }catch(IOException e){
-            System.out.println(e);
+        if (writeDocumentFiles) {
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+                writer.write(sb.toString());
+            }catch(IOException e){
+                System.out.println(e);
+            }
         }
+
+        // the same raw document, packed into the compressed document store, and the sentences
+        // QueryBiasedSummary builds snippets from, so it doesn't have to segment anything itself
+        docStoreWriter.add(internalId, sb.toString().getBytes(StandardCharsets.UTF_8));
+        sentenceStoreWriter.add(internalId, SentenceSegmenter.encode(docNo, sb));
     }
 
     private static void writeInvertedIndexToFile(Map<Integer, List<DocIdCountPair>> invertedIndex, String filePath) {
@@ -417,3 +452,398 @@ class DocIdCountPair {
         this.count = count;
     }
 }
+
+// Packs one record per document, in internal id order, into blocks of about 64 KB that are each
+// compressed on their own with Deflater, so a reader only inflates the block a document is in.
+// Used for both docstore/ (the raw documents as UTF-8) and sentences/ (see SentenceSegmenter).
+//   <store>/<store>.bin - the compressed blocks back to back
+//   <store>/blocks.idx  - number of docs and blocks, then (first id, offset, compressed length)
+//                         for every block
+// An inflated block is: doc count, then count + 1 offsets into the bytes that follow, then the
+// records themselves
+class DocumentStoreWriter implements Closeable {
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private final String storePath;
+    private final OutputStream blocks;
+    private final List<Integer> blockFirstIds = new ArrayList<>();
+    private final List<Long> blockOffsets = new ArrayList<>();
+    private final List<Integer> blockLengths = new ArrayList<>();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final List<Integer> pendingOffsets = new ArrayList<>();
+    private final Deflater deflater = new Deflater();
+    private int firstPendingId;
+    private int numDocs = 0;
+    private long bytesWritten = 0;
+
+    public DocumentStoreWriter(String indexPath, String storeName) throws IOException {
+        this.storePath = indexPath + "/" + storeName + "/";
+        new File(storePath).mkdirs();
+        this.blocks = new BufferedOutputStream(new FileOutputStream(storePath + storeName + ".bin"));
+    }
+
+    // ids have to come in order with no gaps, which is how the index engine hands them out
+    public void add(int internalId, byte[] record) throws IOException {
+        if (pendingOffsets.isEmpty()) {
+            firstPendingId = internalId;
+        }
+        pendingOffsets.add(pending.size());
+        pending.write(record);
+        numDocs++;
+
+        if (pending.size() >= BLOCK_SIZE) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (pendingOffsets.isEmpty()) {
+            return;
+        }
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream(pending.size() + 4 * pendingOffsets.size() + 8);
+        DataOutputStream header = new DataOutputStream(block);
+        header.writeInt(pendingOffsets.size());
+        for (int offset : pendingOffsets) {
+            header.writeInt(offset);
+        }
+        header.writeInt(pending.size());
+        pending.writeTo(block);
+
+        byte[] raw = block.toByteArray();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buffer = new byte[8192];
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            blocks.write(buffer, 0, n);
+            compressedLength += n;
+        }
+
+        blockFirstIds.add(firstPendingId);
+        blockOffsets.add(bytesWritten);
+        blockLengths.add(compressedLength);
+        bytesWritten += compressedLength;
+
+        pending.reset();
+        pendingOffsets.clear();
+    }
+
+    public void close() throws IOException {
+        flushBlock();
+        blocks.close();
+        deflater.end();
+
+        try (DataOutputStream index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storePath + "blocks.idx")))) {
+            index.writeInt(numDocs);
+            index.writeInt(blockFirstIds.size());
+            for (int i = 0; i < blockFirstIds.size(); i++) {
+                index.writeInt(blockFirstIds.get(i));
+                index.writeLong(blockOffsets.get(i));
+                index.writeInt(blockLengths.get(i));
+            }
+        }
+    }
+}
+
+// Splits a document into the headline, date and sentences QueryBiasedSummary shows, exactly the
+// way QueryBiasedSummary does it when reading the gzip, and encodes them as a sentences/ record:
+//   docno, headline, date   - each an int byte length and UTF-8 bytes
+//   sentence count n, then n + 1 offsets into the text that follows, then the text: every
+//   sentence's UTF-8 bytes back to back
+class SentenceSegmenter {
+    // the index engine reads one document at a time, so one splitter's buffers are reused throughout
+    private static final SentenceSplitter splitter = new SentenceSplitter();
+
+    public static byte[] encode(String docNo, StringBuffer sb) throws IOException {
+        splitter.split(sb);
+        byte[] text = splitter.getText();
+        int[] boundaries = splitter.getBoundaries();
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(text.length + 4 * boundaries.length + 256);
+        DataOutputStream out = new DataOutputStream(record);
+        writeString(out, docNo);
+        writeString(out, extractHeadline(sb));
+        writeString(out, extractDate(sb));
+        out.writeInt(boundaries.length - 1);
+        for (int boundary : boundaries) {
+            out.writeInt(boundary);
+        }
+        out.write(text);
+        out.flush();
+        return record.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // the date as QueryBiasedSummary's line-by-line reader picks it out: the start of the line
+    // after the <P> inside <DATE>, up to its second comma
+    private static String extractDate(StringBuffer sb) throws IOException {
+        BufferedReader buffered = new BufferedReader(new StringReader(sb.toString()));
+        String date = "", line;
+        boolean inDate = false, isDateNext = false;
+
+        while ((line = buffered.readLine()) != null) {
+            if (inDate && isDateNext) {
+                date += getUpToSecondComma(line.trim());
+                isDateNext = false;
+                inDate = false;
+            }
+
+            if (line.contains("<DATE>") || inDate) {
+                inDate = true;
+                if (line.contains("<P>")) {
+                    isDateNext = true;
+                }
+            } else {
+                inDate = false;
+            }
+
+            if (line.contains("</DOC>")) {
+                break;
+            }
+        }
+        return date;
+    }
+
+    private static String extractHeadline(StringBuffer sb){
+        StringBuilder headline = new StringBuilder();
+
+        Pattern headlinePattern = Pattern.compile("<HEADLINE>(.*?)</HEADLINE>", Pattern.DOTALL);
+        Matcher headlineMatcher = headlinePattern.matcher(sb);
+
+        if (headlineMatcher.find()) {
+            String headlineContent = headlineMatcher.group(1);
+
+            Pattern paragraphPattern = Pattern.compile("<P>(.*?)</P>", Pattern.DOTALL);
+            Matcher paragraphMatcher = paragraphPattern.matcher(headlineContent);
+
+            while (paragraphMatcher.find()) {
+                String part = paragraphMatcher.group(1).trim();
+                if (!part.isEmpty()) {
+                    headline.append(part).append(" ");
+                }
+            }
+        }
+        return headline.toString().trim(); // Return the concatenated headline
+    }
+
+    // Extract content up to the second comma (for date extraction)
+    private static String getUpToSecondComma(String line) {
+        String[] parts = line.split(",");
+        if (parts.length >= 2) {
+            return parts[0] + ", " + parts[1];
+        }
+        return line;
+    }
+}
+
+// Splits the <P> paragraphs of a document's <TEXT> and <GRAPHIC> sections into sentences in one
+// pass, straight into a UTF-8 array plus sentence boundaries. The boundaries are the ones the
+// original regex and StringBuilder splitter produced: whitespace runs are collapsed to one
+// space, paragraphs and sentences are trimmed, and a sentence ends at '.', '!' or '?' followed by
+// whitespace unless it ends with one of the abbreviations, which are looked up backwards from the
+// punctuation in a trie of their reversed spellings
+class SentenceSplitter {
+    private static final String[] ABBREVIATIONS = {
+        "Dr.", "Mr.", "Mrs.", "Ms.", "Inc.", "U.S.", "e.g.", "i.e.", "etc.", "Jr.", "Sr.", "Prof.", "Rev."};
+    private static final TrieNode REVERSED_ABBREVIATIONS = new TrieNode();
+
+    static {
+        for (String abbreviation : ABBREVIATIONS) {
+            TrieNode node = REVERSED_ABBREVIATIONS;
+            for (int i = abbreviation.length() - 1; i >= 0; i--) {
+                node = node.child(abbreviation.charAt(i), true);
+            }
+            node.terminal = true;
+        }
+    }
+
+    // the section being split, with its whitespace runs collapsed in place
+    private char[] content = new char[4096];
+    private byte[] text = new byte[4096];
+    private int textLength = 0;
+    private int[] boundaries = new int[64];
+    private int numSentences = 0;
+
+    // splits a whole document, replacing whatever was split before
+    public void split(StringBuffer document) {
+        textLength = 0;
+        numSentences = 0;
+        boundaries[0] = 0;
+
+        // the first <TEXT> section, then every <GRAPHIC> section
+        int start = document.indexOf("<TEXT>");
+        int end = start < 0 ? -1 : document.indexOf("</TEXT>", start + "<TEXT>".length());
+        if (end >= 0) {
+            splitSection(document, start + "<TEXT>".length(), end);
+        }
+        int from = 0;
+        while ((start = document.indexOf("<GRAPHIC>", from)) >= 0) {
+            end = document.indexOf("</GRAPHIC>", start + "<GRAPHIC>".length());
+            if (end < 0) {
+                break;
+            }
+            splitSection(document, start + "<GRAPHIC>".length(), end);
+            from = end + "</GRAPHIC>".length();
+        }
+    }
+
+    public byte[] getText() {
+        return Arrays.copyOf(text, textLength);
+    }
+
+    // numSentences + 1 offsets into getText(), sentence i being [boundaries[i], boundaries[i + 1])
+    public int[] getBoundaries() {
+        return Arrays.copyOf(boundaries, numSentences + 1);
+    }
+
+    private void splitSection(StringBuffer document, int start, int end) {
+        int length = end - start;
+        if (content.length < length) {
+            content = new char[Math.max(length, 2 * content.length)];
+        }
+        document.getChars(start, end, content, 0);
+
+        // collapse runs of regex \s ([ \t\n\x0B\f\r]) into single spaces
+        int collapsed = 0;
+        boolean inRun = false;
+        for (int i = 0; i < length; i++) {
+            char c = content[i];
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+                if (!inRun) {
+                    content[collapsed++] = ' ';
+                    inRun = true;
+                }
+            } else {
+                content[collapsed++] = c;
+                inRun = false;
+            }
+        }
+
+        // every <P> with a closing </P> after it is a paragraph
+        int from = 0;
+        int paragraphStart;
+        while ((paragraphStart = indexOf("<P>", from, collapsed)) >= 0) {
+            int paragraphEnd = indexOf("</P>", paragraphStart + "<P>".length(), collapsed);
+            if (paragraphEnd < 0) {
+                break;
+            }
+            splitParagraph(paragraphStart + "<P>".length(), paragraphEnd);
+            from = paragraphEnd + "</P>".length();
+        }
+    }
+
+    private void splitParagraph(int start, int end) {
+        while (start < end && content[start] <= ' ') {
+            start++;
+        }
+        while (end > start && content[end - 1] <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return;
+        }
+
+        int sentenceStart = start;
+        for (int i = start; i < end; i++) {
+            char c = content[i];
+            if ((c == '.' || c == '!' || c == '?') && i + 1 < end && Character.isWhitespace(content[i + 1])
+                    && !endsWithAbbreviation(sentenceStart, i)) {
+                addSentence(sentenceStart, i + 1);
+                sentenceStart = i + 1;
+            }
+        }
+        if (sentenceStart < end) {
+            addSentence(sentenceStart, end);
+        }
+    }
+
+    // walks back from the punctuation at last, never past the start of the sentence
+    private boolean endsWithAbbreviation(int sentenceStart, int last) {
+        TrieNode node = REVERSED_ABBREVIATIONS;
+        for (int i = last; i >= sentenceStart; i--) {
+            node = node.child(content[i], false);
+            if (node == null) {
+                return false;
+            }
+            if (node.terminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // appends the trimmed sentence as UTF-8, with unpaired surrogates as '?' like String.getBytes
+    private void addSentence(int start, int end) {
+        while (start < end && content[start] <= ' ') {
+            start++;
+        }
+        while (end > start && content[end - 1] <= ' ') {
+            end--;
+        }
+        if (text.length < textLength + 3 * (end - start)) {
+            text = Arrays.copyOf(text, Math.max(textLength + 3 * (end - start), 2 * text.length));
+        }
+        for (int i = start; i < end; i++) {
+            char c = content[i];
+            if (c < 0x80) {
+                text[textLength++] = (byte) c;
+            } else if (c < 0x800) {
+                text[textLength++] = (byte) (0xC0 | (c >> 6));
+                text[textLength++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(content[i + 1])) {
+                int codePoint = Character.toCodePoint(c, content[++i]);
+                text[textLength++] = (byte) (0xF0 | (codePoint >> 18));
+                text[textLength++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                text[textLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                text[textLength++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                text[textLength++] = '?';
+            } else {
+                text[textLength++] = (byte) (0xE0 | (c >> 12));
+                text[textLength++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                text[textLength++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        if (boundaries.length < numSentences + 2) {
+            boundaries = Arrays.copyOf(boundaries, 2 * boundaries.length);
+        }
+        boundaries[++numSentences] = textLength;
+    }
+
+    private int indexOf(String target, int from, int end) {
+        int last = end - target.length();
+        for (int i = from; i <= last; i++) {
+            int matched = 0;
+            while (matched < target.length() && content[i + matched] == target.charAt(matched)) {
+                matched++;
+            }
+            if (matched == target.length()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        private boolean terminal = false;
+
+        private TrieNode child(char c, boolean create) {
+            TrieNode child = children.get(c);
+            if (child == null && create) {
+                child = new TrieNode();
+                children.put(c, child);
+            }
+            return child;
+        }
+    }
+}
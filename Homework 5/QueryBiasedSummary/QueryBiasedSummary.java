@@ -1,57 +1,190 @@
+import java.util.zip.DataFormatException;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class QueryBiasedSummary {
     static int internalId = 1;
-    private static Map<Integer, List<DocIdCountPair>> invertedIndex;
-    private static Map<Integer, DocumentMetadata> documentMetadata;
-    private static Map<String, Integer> lexicon; 
-    private static Map<String, Document> documents;
-    private static Map<Integer, Integer> docLengths;
-    private static int totalDocs;
-    private static double avgDocLength;
+    // every document, when they're all loaded from the gzip in the background at startup
+    private static CompletableFuture<Map<String, Document>> documents;
     private static String docLengthsFile = "/Users/victorsu/Desktop/MSE-541/latimes-index/doc-lengths/doc-lengths.txt";
 
     private static final String indexDirectory = "/Users/victorsu/Desktop/MSE-541/latimes-index";
     private static final String GzipPath = "/Users/victorsu/Desktop/MSE-541/latimes.gz";
-    private static final Set<String> ABBREVIATIONS = new HashSet<>(Arrays.asList(
-        "Dr.", "Mr.", "Mrs.", "Ms.", "Inc.", "U.S.", "e.g.", "i.e.", "etc.", "Jr.", "Sr.", "Prof.", "Rev."));
+    // number of docId ranges a single query is scored over, set with --partitions=N
+    private static int scoringPartitions = 1;
+    private static ForkJoinPool scoringPool;
+    // memory bound of the query result cache, set with --result-cache-mb=N (0 turns it off)
+    private static long resultCacheBytes = 16L * 1024 * 1024;
+    private static ResultCache resultCache;
+    // memory bound of the decompressed document store blocks, set with --block-cache-mb=N
+    private static long blockCacheBytes = 32L * 1024 * 1024;
+    // snippets come from the sentence store when the index has one, then the document store,
+    // and otherwise from the gzip. The viewer reads raw documents from the document store
+    private static BlockDocumentStore sentenceStore;
+    private static BlockDocumentStore docStore;
+    // without a store, --lazy-documents rescans the gzip for each query's results instead of keeping every document
+    private static boolean lazyDocuments = false;
+    // memory bound of the parsed documents kept between queries, set with --document-cache-mb=N
+    private static long documentCacheBytes = 8L * 1024 * 1024;
+    private static DocumentCache documentCache;
+    // threads that build the snippets of a results page, set with --snippet-threads=N
+    private static int snippetThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static ExecutorService snippetPool;
+    // memory bound of the snippets kept per (document, query terms), set with --snippet-cache-mb=N (0 turns it off)
+    private static long snippetCacheBytes = 4L * 1024 * 1024;
+    private static SnippetCache snippetCache;
+    // raw text of the last few documents viewed, for going back and forth between results
+    private static final int VIEWED_DOCUMENTS = 16;
+    private static final Map<Integer, String> recentlyViewed = new LinkedHashMap<Integer, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+            return size() > VIEWED_DOCUMENTS;
+        }
+    };
 
     public static void main(String[] args) throws FileNotFoundException, IOException {
-        System.out.println("Starting to load the inverted index into memmory");
-        //read the index
-        invertedIndex = loadInvertedIndex(indexDirectory);
-        //read the lexicon
-        lexicon = loadLexicon(indexDirectory);
-        // read all metadata
-        documentMetadata = loadDocumentMetadata(indexDirectory);
-        // doc lengths
-        docLengths = loadDocLengths(docLengthsFile);
-        // total docs
-        totalDocs = documentMetadata.size();
-        // avg doc lengths
-        avgDocLength = loadAverageDocLengths();
-        // read documents from gzip
-        documents = new HashMap<>();
-        processGZippedfiles(GzipPath);
+        for (String arg : args) {
+            parseOption(arg);
+        }
+        if (scoringPartitions > 1) {
+            scoringPool = new ForkJoinPool(scoringPartitions);
+        }
+        resultCache = new ResultCache(resultCacheBytes);
+        documentCache = new DocumentCache(documentCacheBytes);
+        snippetCache = new SnippetCache(snippetCacheBytes);
+        snippetPool = Executors.newFixedThreadPool(snippetThreads, runnable -> {
+            // daemon threads, so an idle pool doesn't keep the program running after quitting
+            Thread thread = new Thread(runnable, "snippets");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // the loads run side by side in the background and the prompt shows straight away,
+        // a query only waits for the parts of the index it uses
+        ExecutorService loaders = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "index-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        System.out.println("Loading the index in the background, queries can be entered right away");
+        // read the index, lexicon, metadata and doc lengths
+        IndexReader reader = IndexReader.open(indexDirectory, docLengthsFile, loaders);
+        // read documents from the compressed stores as results need them, or all of them from the gzip
+        if (BlockDocumentStore.exists(indexDirectory, "sentences")) {
+            sentenceStore = BlockDocumentStore.open(indexDirectory, "sentences", blockCacheBytes);
+        }
+        if (BlockDocumentStore.exists(indexDirectory, "docstore")) {
+            docStore = BlockDocumentStore.open(indexDirectory, "docstore", blockCacheBytes);
+        }
+        if (sentenceStore == null && docStore == null && !lazyDocuments) {
+            documents = CompletableFuture.supplyAsync(() -> {
+                Map<String, Document> loaded = new HashMap<>();
+                try {
+                    processGZippedfiles(GzipPath, loaded, null);
+                } catch (IOException e) {
+                    System.out.println(e);
+                }
+                return loaded;
+            }, loaders);
+        }
+
+        performRetrieval(new Searcher(reader));
+    }
 
-        System.out.println("Finished Loading the Index!");
-        performRetrieval();
+    private static void parseOption(String option) {
+        try {
+            if (option.startsWith("--partitions=")) {
+                scoringPartitions = Integer.parseInt(option.substring("--partitions=".length()));
+                if (scoringPartitions < 1) {
+                    System.err.println("Number of partitions must be at least 1.");
+                    System.exit(1);
+                }
+                return;
+            }
+            if (option.startsWith("--block-cache-mb=")) {
+                blockCacheBytes = Long.parseLong(option.substring("--block-cache-mb=".length())) * 1024 * 1024;
+                if (blockCacheBytes < 0) {
+                    System.err.println("Block cache size can't be negative.");
+                    System.exit(1);
+                }
+                return;
+            }
+            if (option.startsWith("--snippet-threads=")) {
+                snippetThreads = Integer.parseInt(option.substring("--snippet-threads=".length()));
+                if (snippetThreads < 1) {
+                    System.err.println("Number of snippet threads must be at least 1.");
+                    System.exit(1);
+                }
+                return;
+            }
+            if (option.startsWith("--snippet-cache-mb=")) {
+                snippetCacheBytes = Long.parseLong(option.substring("--snippet-cache-mb=".length())) * 1024 * 1024;
+                if (snippetCacheBytes < 0) {
+                    System.err.println("Snippet cache size can't be negative.");
+                    System.exit(1);
+                }
+                return;
+            }
+            if (option.equals("--lazy-documents")) {
+                lazyDocuments = true;
+                return;
+            }
+            if (option.startsWith("--document-cache-mb=")) {
+                documentCacheBytes = Long.parseLong(option.substring("--document-cache-mb=".length())) * 1024 * 1024;
+                if (documentCacheBytes < 0) {
+                    System.err.println("Document cache size can't be negative.");
+                    System.exit(1);
+                }
+                return;
+            }
+            if (option.startsWith("--result-cache-mb=")) {
+                resultCacheBytes = Long.parseLong(option.substring("--result-cache-mb=".length())) * 1024 * 1024;
+                if (resultCacheBytes < 0) {
+                    System.err.println("Result cache size can't be negative.");
+                    System.exit(1);
+                }
+                return;
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for option: " + option);
+            System.exit(1);
+        }
+        System.err.println("Unknown option: " + option);
+        System.exit(1);
     }
 
-    public static void performRetrieval(){
+    public static void performRetrieval(Searcher searcher){
 
         Scanner scanner = new Scanner(System.in);
         while (true) {
@@ -59,19 +192,68 @@ public class QueryBiasedSummary {
             String query = scanner.nextLine();
 
             if (query.equalsIgnoreCase("Q")) {
+                printCacheStats();
                 System.out.println("Goodbye!");
                 break;
             }
+            if (!searcher.getReader().isReady() || (documents != null && !documents.isDone())) {
+                System.out.println("The index is still loading, the query will run once the parts it needs are in memory.");
+            }
 
-            // Perform BM25 retrieval and rank results
+            // Perform BM25 retrieval and rank results, unless the same tokens were searched recently
             long startTime = System.nanoTime();
-            List<String> top10Docs = generateBM25Results(query);
-            long endTime = System.nanoTime();
-
-            displayResults(top10Docs, query);
+            String cacheKey = String.join(" ", splitQueryIntoTokens(query));
+            CachedResult cached = resultCache.get(cacheKey);
+            List<String> top10Docs;
+            List<Integer> top10Ids;
+
+            if (cached != null) {
+                top10Docs = cached.getDocNos();
+                top10Ids = cached.getInternalIds();
+                long rankedTime = printRanking(searcher.getReader(), top10Ids, startTime);
+                for (String result : cached.getRenderedResults()) {
+                    System.out.println(result);
+                }
+                long endTime = System.nanoTime();
+                System.out.println("Snippets took " + String.format("%.2f", (endTime - rankedTime) / 1e9) + " seconds.");
+            } else {
+                List<String> queryTokens = splitQueryIntoTokens(query);
+                List<Map.Entry<Integer, Double>> rankedDocs;
+                try {
+                    rankedDocs = scoringPartitions > 1
+                        ? searcher.searchByDocIdRanges(queryTokens, 10, scoringPartitions, scoringPool)
+                        : searcher.search(queryTokens, 10);
+                } catch (CompletionException e) {
+                    // a part of the index the ranking needs failed to load in the background
+                    System.err.println(e.getCause().getMessage());
+                    System.exit(1);
+                    return;
+                }
 
-            // Display retrieval time
-            System.out.println("Retrieval took " + String.format("%.2f", (endTime - startTime) / 1e9) + " seconds.");
+                top10Docs = new ArrayList<>();
+                top10Ids = new ArrayList<>();
+                for (Map.Entry<Integer, Double> entry : rankedDocs) {
+                    top10Docs.add(searcher.getReader().getMetadata(entry.getKey()).getDocNo());
+                    top10Ids.add(entry.getKey());
+                }
+                // start on the snippets, then show the ranking from the metadata while they're built
+                List<CompletableFuture<String>> pendingResults = renderResults(searcher.getReader(), top10Ids, top10Docs, query);
+                long rankedTime = printRanking(searcher.getReader(), top10Ids, startTime);
+
+                // then each snippet under its rank, in whatever order they finish
+                List<CompletableFuture<Void>> printed = new ArrayList<>();
+                for (CompletableFuture<String> result : pendingResults) {
+                    printed.add(result.thenAccept(System.out::println));
+                }
+                CompletableFuture.allOf(printed.toArray(new CompletableFuture<?>[0])).join();
+                List<String> renderedResults = new ArrayList<>();
+                for (CompletableFuture<String> result : pendingResults) {
+                    renderedResults.add(result.join());
+                }
+                long endTime = System.nanoTime();
+                System.out.println("Snippets took " + String.format("%.2f", (endTime - rankedTime) / 1e9) + " seconds.");
+                resultCache.put(cacheKey, new CachedResult(top10Ids, top10Docs, renderedResults));
+            }
 
             // Post-retrieval interaction
             while (true) {
@@ -80,6 +262,7 @@ public class QueryBiasedSummary {
 
                 if (input.equalsIgnoreCase("N")) break;
                 if (input.equalsIgnoreCase("Q")) {
+                    printCacheStats();
                     System.out.println("Goodbye!");
                     return;
                 }
@@ -89,7 +272,7 @@ public class QueryBiasedSummary {
                     if (rank >= 1 && rank <= 10) {
                         System.out.println("--------------------------------------------Printing Document--------------------------------------------");
                         System.out.println();
-                        getDoc(indexDirectory, "docno", top10Docs.get(rank-1));
+                        viewDocument(searcher.getReader(), top10Ids.get(rank-1));
                     } else {
                         System.out.println("Invalid rank. Please try again.");
                     }
@@ -101,33 +284,90 @@ public class QueryBiasedSummary {
         scanner.close();
     }
 
-    private static void displayResults(List<String> top10Docs, String query) {
-        int rank = 1;
-        for (String docNo : top10Docs) {
-            String headline = documents.get(docNo).getHeadline();
-            String date = documents.get(docNo).getDate();
+    private static void printCacheStats() {
+        System.out.println("Result cache: " + resultCache.getHits() + " hits, " + resultCache.getMisses() + " misses");
+        if (sentenceStore != null) {
+            System.out.println("Sentence store block cache: " + sentenceStore.getHits() + " hits, " + sentenceStore.getMisses() + " misses");
+        }
+        if (docStore != null) {
+            System.out.println("Document store block cache: " + docStore.getHits() + " hits, " + docStore.getMisses() + " misses");
+        }
+        if (sentenceStore != null || docStore != null || lazyDocuments) {
+            System.out.println("Document cache: " + documentCache.getHits() + " hits, " + documentCache.getMisses() + " misses");
+        }
+        System.out.println("Snippet cache: " + snippetCache.getHits() + " hits, " + snippetCache.getMisses() + " misses");
+    }
+
+    // Prints the ranked headlines and dates from the metadata loaded with the index, which doesn't
+    // need the documents, and returns when it finished
+    private static long printRanking(IndexReader reader, List<Integer> top10Ids, long startTime) {
+        for (int i = 0; i < top10Ids.size(); i++) {
+            DocumentMetadata metadata = reader.getMetadata(top10Ids.get(i));
+            String headline = metadata.getHeadline().isEmpty() ? metadata.getDocNo() : metadata.getHeadline();
+            System.out.println((i + 1) + ". " + headline + " (" + metadata.getDate().replaceAll("\\s+", " ").trim() + ")");
+        }
+        long rankedTime = System.nanoTime();
+        System.out.println("Ranking took " + String.format("%.2f", (rankedTime - startTime) / 1e9) + " seconds.");
+        System.out.println();
+        return rankedTime;
+    }
+
+    // Starts rendering every result's snippet as the lines printed for it, so the text can be cached
+    // with the ranking. Returns straight away: the documents are read on the snippet pool, then each result's
+    // snippet is built on its own task, so the results finish independently of each other
+    private static List<CompletableFuture<String>> renderResults(IndexReader reader, List<Integer> top10Ids, List<String> top10Docs, String query) {
+        CompletableFuture<List<Document>> top10Documents = CompletableFuture.supplyAsync(() -> loadDocuments(top10Ids, top10Docs), snippetPool);
+        int[] queryTermIds = getSnippetTermIds(reader, query);
+
+        List<CompletableFuture<String>> rendered = new ArrayList<>();
+        for (int i = 0; i < top10Docs.size(); i++) {
+            int rank = i + 1;
+            int internalId = top10Ids.get(i);
+            String docNo = top10Docs.get(i);
+            rendered.add(top10Documents.thenApplyAsync(
+                documents -> renderResult(rank, internalId, docNo, documents.get(rank - 1), query, queryTermIds), snippetPool));
+        }
+        return rendered;
+    }
+
+    private static String renderResult(int rank, int internalId, String docNo, Document document, String query, int[] queryTermIds) {
+        SnippetKey key = new SnippetKey(internalId, queryTermIds);
+        String qbs = snippetCache.get(key);
+        if (qbs == null) {
+            qbs = getQbs(document, query);
+            snippetCache.put(key, qbs);
+        }
 
-            String qbs = getQbs(documents.get(docNo).getSentences(), query);
+        return rank + ". " + qbs + " (" + docNo + ")\n";
+    }
 
-            if (headline == null || headline.isEmpty()) {
-                headline = qbs.length() > 50 ? qbs.substring(0, 50) + "..." : qbs;
+    // The lexicon ids of the query tokens in sorted order, which is all a snippet depends on.
+    // Tokens outside the lexicon can't occur in any sentence and are left out, while repeated
+    // tokens are kept because each occurrence adds to a sentence's score
+    private static int[] getSnippetTermIds(IndexReader reader, String query) {
+        List<Integer> termIds = new ArrayList<>();
+        for (String token : splitQueryIntoTokens(query)) {
+            Integer termId = reader.getTermId(token);
+            if (termId != null) {
+                termIds.add(termId);
             }
-
-            System.out.println(rank++ + ". " + headline + " (" + date.replaceAll("\\s+", " ").trim()+ ")");
-            System.out.println(qbs + " (" + docNo + ")");
-            System.out.println();
         }
+        int[] sorted = termIds.stream().mapToInt(Integer::intValue).toArray();
+        Arrays.sort(sorted);
+        return sorted;
     }
 
-    private static String getQbs(List<String> sentences, String query) {
+    private static String getQbs(Document document, String query) {
         double k1 = 1.2;
         double b = 0.75;
-        List<String> queryTokens = splitQueryIntoTokens(query);
+        List<String> sentences = document.getSentences();
+        SentenceStats stats = document.getSentenceStats();
+        int[] queryTermIds = stats.getTermIds(splitQueryIntoTokens(query));
     
         Map<String, Double> sentenceScores = new HashMap<>();
-        for (String sentence : sentences) {
-            double score = calculateSentenceBM25Score(sentence, queryTokens, sentences, k1, b);
-            sentenceScores.put(sentence, score);
+        for (int i = 0; i < sentences.size(); i++) {
+            double score = stats.score(i, queryTermIds, k1, b);
+            sentenceScores.put(sentences.get(i), score);
         }
     
         // Rank sentences by score
@@ -148,230 +388,99 @@ public class QueryBiasedSummary {
     
         return summary.toString().trim();
     }
-    
-    
 
-    private static double calculateSentenceBM25Score(String sentence, List<String> queryTokens, List<String> allSentences, double k1, double b) {
-        // Tokenize the sentence and calculate term frequencies
-        List<String> words = splitQueryIntoTokens(sentence);
-        Map<String, Integer> termFreq = new HashMap<>();
-        for (String word : words) {
-            termFreq.put(word, termFreq.getOrDefault(word, 0) + 1);
-        }
-    
-        // Calculate average sentence length
-        int totalLength = 0;
-        for (String s : allSentences) {
-            totalLength += splitQueryIntoTokens(s).size();
-        }
-        double avgSentenceLength = totalLength / (double) allSentences.size();
-    
-        double sentenceLength = words.size();
-        double score = 0.0;
-    
-        // Calculate BM25 score
-        for (String queryToken : queryTokens) {
-            int f = termFreq.getOrDefault(queryToken, 0);
-            int n = 0;
-    
-            // Count the number of sentences containing the query token
-            for (String s : allSentences) {
-                if (splitQueryIntoTokens(s).contains(queryToken)) {
-                    n++;
-                }
+    // The documents of a page of results. Unless the whole gzip was loaded at startup, only
+    // these are read and segmented, and they're kept in the bounded document cache so results
+    // that show up again for the next queries don't need reading again
+    private static List<Document> loadDocuments(List<Integer> internalIds, List<String> docNos) {
+        List<Document> loaded = new ArrayList<>();
+        if (sentenceStore == null && docStore == null && !lazyDocuments) {
+            Map<String, Document> all = documents.join();
+            for (String docNo : docNos) {
+                loaded.add(all.get(docNo));
             }
-    
-            double idf = Math.log((allSentences.size() - n + 0.5) / (n + 0.5) + 1);
-            score += idf * ((f * (k1 + 1)) / (f + k1 * (1 - b + b * (sentenceLength / avgSentenceLength))));
+            return loaded;
         }
-    
-        return score;
-    }
-    
 
-    private static List<String> extractSentences(StringBuffer sb) {
-        List<String> sentences = new ArrayList<>();
-    
-        Pattern textPattern = Pattern.compile("<TEXT>(.*?)</TEXT>", Pattern.DOTALL);
-        Matcher textMatcher = textPattern.matcher(sb);
-    
-        if (textMatcher.find()) {
-            String textContent = textMatcher.group(1);
-            extractSentencesFromContent(sentences, textContent);
-        }
-    
-        Pattern graphicPattern = Pattern.compile("<GRAPHIC>(.*?)</GRAPHIC>", Pattern.DOTALL);
-        Matcher graphicMatcher = graphicPattern.matcher(sb);
-    
-        while (graphicMatcher.find()) {
-            String graphicContent = graphicMatcher.group(1);
-            extractSentencesFromContent(sentences, graphicContent);
-        }
-    
-        return sentences;
-    }
-    
-    // Helper method to extract sentences from a given content
-    private static void extractSentencesFromContent(List<String> sentences, String content) {
-        content = content.replaceAll("\\s+", " ").trim();
-    
-        Pattern paragraphPattern = Pattern.compile("<P>(.*?)</P>", Pattern.DOTALL);
-        Matcher paragraphMatcher = paragraphPattern.matcher(content);
-    
-        while (paragraphMatcher.find()) {
-            String paragraph = paragraphMatcher.group(1).trim();
-            if (!paragraph.isEmpty()) {
-                String[] rawSentences = splitSentences(paragraph);
-                for (String sentence : rawSentences) {
-                    sentences.add(sentence.trim()); // Trim any leading/trailing spaces
-                }
+        Set<String> notCached = new HashSet<>();
+        for (int i = 0; i < internalIds.size(); i++) {
+            Document document = documentCache.get(internalIds.get(i));
+            if (document == null && (sentenceStore != null || docStore != null)) {
+                document = readDocument(internalIds.get(i), docNos.get(i));
+                documentCache.put(internalIds.get(i), document);
+            } else if (document == null) {
+                notCached.add(docNos.get(i));
             }
+            loaded.add(document);
         }
-    }
-    
 
-    private static String[] splitSentences(String paragraph) {
-        List<String> sentences = new ArrayList<>();
-        StringBuilder currentSentence = new StringBuilder();
-
-        // Split by sentence-ending punctuation marks (period, exclamation, question mark)
-        for (int i = 0; i < paragraph.length(); i++) {
-            char c = paragraph.charAt(i);
-            currentSentence.append(c);
-
-            // Check if the current character is sentence-ending punctuation
-            if (c == '.' || c == '!' || c == '?') {
-                // Look ahead to see if we should split the sentence
-                if (i + 1 < paragraph.length() && Character.isWhitespace(paragraph.charAt(i + 1))) {
-                    // Look ahead to see if the sentence ends with an abbreviation
-                    String sentence = currentSentence.toString().trim();
-                    if (!isAbbreviation(sentence)) {
-                        sentences.add(sentence);
-                        currentSentence = new StringBuilder();  // Reset for next sentence
-                    }
+        // lazy gzip mode, one pass over the gzip picks up everything that wasn't cached
+        if (!notCached.isEmpty()) {
+            Map<String, Document> found = new HashMap<>();
+            try {
+                processGZippedfiles(GzipPath, found, notCached);
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+            for (int i = 0; i < loaded.size(); i++) {
+                if (loaded.get(i) == null) {
+                    loaded.set(i, found.get(docNos.get(i)));
+                    documentCache.put(internalIds.get(i), loaded.get(i));
                 }
             }
         }
-
-        // Add the remaining sentence if there is any content
-        if (currentSentence.length() > 0) {
-            sentences.add(currentSentence.toString().trim());
-        }
-
-        return sentences.toArray(new String[0]);
+        return loaded;
     }
 
-    // Check if the sentence ends with an abbreviation
-    private static boolean isAbbreviation(String sentence) {
-        for (String abbreviation : ABBREVIATIONS) {
-            if (sentence.endsWith(abbreviation)) {
-                return true;
+    // One document from a store. The sentence store has it already segmented, the document
+    // store only has the raw text to parse
+    private static Document readDocument(int internalId, String docNo) {
+        try {
+            if (sentenceStore != null) {
+                return decodeDocument(sentenceStore.getRecord(internalId));
             }
-        }
-        return false;
-    }
 
-    private static Map<String, Integer> loadLexicon(String indexPath) {
-        Map<String, Integer> lexicon = new HashMap<>();
-        
-        String lexiconPath = "/lexicon/lexicon.txt";
-    
-        try (BufferedReader reader = new BufferedReader(new FileReader(indexPath + lexiconPath))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.trim().split(":");
-                if (parts.length == 2) {
-                    lexicon.put(parts[0], Integer.parseInt(parts[1]));
-                }
-            }
+            Map<String, Document> parsed = new HashMap<>();
+            processFiles(new BufferedReader(new StringReader(docStore.getDocument(internalId))), parsed, null);
+            return parsed.get(docNo);
         } catch (IOException e) {
-            System.err.println("Error reading lexicon file: " + e.getMessage());
-        } catch (NumberFormatException e) {
-            System.err.println("Error parsing term ID: " + e.getMessage());
+            System.out.println("Error reading document " + docNo + ": " + e.getMessage());
+            return null;
         }
-    
-        return lexicon;
     }
 
-    private static Map<Integer, List<DocIdCountPair>> loadInvertedIndex(String indexPath) {
-        Map<Integer, List<DocIdCountPair>> index = new HashMap<>();
-        String invertedIndexPath = "/invertedIndex/invertedIndex.txt";
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(indexPath + invertedIndexPath))) {
-            String line;
-            Integer currentTermId = null;
-
-            while ((line = reader.readLine()) != null) {
-                line = line.trim(); 
-
-                if (line.startsWith("Term ID:")) {
-                    currentTermId = Integer.parseInt(line.split(":")[1].trim());
-                    index.put(currentTermId, new ArrayList<>());
-                } else if (line.startsWith("DocID:") && currentTermId != null) {
-                    String[] parts = line.split(",");
-                    Integer docId = Integer.parseInt(parts[0].split(":")[1].trim());
-                    Integer count = Integer.parseInt(parts[1].split(":")[1].trim());
-
-                    index.get(currentTermId).add(new DocIdCountPair(docId, count));
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Error reading inverted index file: " + e.getMessage());
+    // A sentences/ record as the index engine's SentenceSegmenter writes it: docno, headline and
+    // date, then the sentence count, count + 1 boundaries and the sentences' UTF-8 bytes
+    private static Document decodeDocument(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        String docNo = readString(in);
+        String headline = readString(in);
+        String date = readString(in);
+
+        int numSentences = in.readInt();
+        int[] boundaries = new int[numSentences + 1];
+        for (int i = 0; i < boundaries.length; i++) {
+            boundaries[i] = in.readInt();
         }
-
-        return index;
+        // the record's text is already laid out the way a Document keeps it
+        byte[] text = Arrays.copyOfRange(record, record.length - boundaries[numSentences], record.length);
+        return new Document(docNo, headline, text, boundaries, date);
     }
 
-    private static Map<Integer, DocumentMetadata> loadDocumentMetadata(String indexPath) {
-        Map<Integer, DocumentMetadata> metadataMap = new HashMap<>();
-        
-        File dir = new File(indexPath + "/metadata");
-        File[] files = dir.listFiles((d, name) -> name.endsWith(".txt"));
-
-        if (files != null) {
-            int internalId = -1;
-            for (File file : files) {
-                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                    String line;
-                    String docNo = "";
-                    String date = "";
-                    String headline = "";
-
-                    while ((line = reader.readLine()) != null) {
-                        line = line.trim();
-                        String[] parts = line.split(" ");
-                        for (int i = 0; i < parts.length; i++) {
-                            switch (parts[i]) {
-                                case "docno:":
-                                    docNo = parts[++i];
-                                    break;
-                                case "id:":
-                                    internalId = Integer.parseInt(parts[++i]);
-                                    break;
-                            }
-                        }
-                    }
-                    metadataMap.put(internalId, new DocumentMetadata(docNo, internalId, date, headline));
-                } catch (IOException e) {
-                    System.err.println("Error reading metadata file: " + e.getMessage());
-                } catch (NumberFormatException e) {
-                    System.err.println("Error parsing internal ID: " + e.getMessage());
-                }
-            }
-        } else {
-            System.err.println("No metadata files found in the specified directory.");
-        }
-
-        return metadataMap;
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
-    public static void processGZippedfiles(String inputPath) throws FileNotFoundException, IOException{
+    // parses the documents in wanted (every document when wanted is null) into the map
+    public static void processGZippedfiles(String inputPath, Map<String, Document> into, Set<String> wanted) throws FileNotFoundException, IOException{
         try{
             InputStream fileStream = new FileInputStream(inputPath);
             InputStream gzipStream = new GZIPInputStream(fileStream);
             Reader decoder = new InputStreamReader(gzipStream);
             BufferedReader buffered = new BufferedReader(decoder);
-            processFiles(buffered);
+            processFiles(buffered, into, wanted);
         }catch(FileNotFoundException e){
             System.out.println(e);
         }catch(IOException e){
@@ -379,11 +488,12 @@ public class QueryBiasedSummary {
         }
     }
 
-    private static void processFiles(BufferedReader buffered) throws IOException {
+    private static void processFiles(BufferedReader buffered, Map<String, Document> into, Set<String> wanted) throws IOException {
         try {
             String docNo = "", dirFilePath = "", headline = "", date = "", line;
             File textFilePath = null;
             StringBuffer sb = new StringBuffer();
+            SentenceSplitter splitter = new SentenceSplitter();
             boolean inHeadline = false, inDate = false, isDateNext = false;
 
             while ((line = buffered.readLine()) != null) {
@@ -430,11 +540,16 @@ public class QueryBiasedSummary {
                 // reached the end of the file, write it
                 if(line.contains("</DOC>")){
                     // String documentContents = removeAllTags(sb);
-                    extractAndMapDoc(sb, date, headline, docNo);
+                    if (wanted == null || wanted.contains(docNo)) {
+                        extractAndMapDoc(sb, date, headline, docNo, into, splitter);
+                    }
                     internalId++;
                     sb.setLength(0);
                     date = headline = docNo = "";
                     textFilePath = null;
+                    if (wanted != null && into.size() == wanted.size()) {
+                        break;
+                    }
                 }
             }
         } catch (FileNotFoundException e) {
@@ -448,62 +563,10 @@ public class QueryBiasedSummary {
         }
     }
 
-    private static List<String> generateBM25Results(String query) {
-        List<String> results = new ArrayList<>();
-    
-        List<String> queryTokens = splitQueryIntoTokens(query);
-    
-        Map<Integer, Double> scores = calculateBM25(queryTokens);
-    
-        List<Map.Entry<Integer, Double>> rankedDocs = scores.entrySet().stream()
-            .sorted((a, b) -> {
-                int cmp = Double.compare(b.getValue(), a.getValue());
-                if (cmp != 0) return cmp;
-                // Tie-break by docNo lexicographically
-                return documentMetadata.get(a.getKey()).getDocNo()
-                        .compareTo(documentMetadata.get(b.getKey()).getDocNo());
-            })
-            .limit(10)
-            .collect(Collectors.toList());
-    
-        for (Map.Entry<Integer, Double> entry : rankedDocs) {
-            String docNo = documentMetadata.get(entry.getKey()).getDocNo();
-            results.add(docNo);
-        }
-    
-        return results;
-    }
-
-    private static Map<Integer, Double> calculateBM25(List<String> queryTokens){
-        Map<Integer, Double> scores = new HashMap<>();
-        double k1 = 1.2;
-        double b = 0.75;
-
-            for (String term : queryTokens) {
-                if (!lexicon.containsKey(term)) continue; // Skip terms not in the lexicon
-                int termID = lexicon.get(term);
-    
-                List<DocIdCountPair> postingsList = invertedIndex.getOrDefault(termID, new ArrayList<>());
-                int n_t = postingsList.size();
-                double idf = Math.log((totalDocs - n_t + 0.5) / (n_t + 0.5));
-    
-                for (DocIdCountPair pair : postingsList) {
-                    int docID = pair.getDocId();
-                    int f_td = pair.getCount();
-                    int docLength = docLengths.get(docID);
-    
-                    double bm25Score = idf * ((f_td) / (f_td + (k1 * (1 - b + b * (docLength / avgDocLength)))));
-                    scores.put(docID, scores.getOrDefault(docID, 0.0) + bm25Score);
-                }
-    
-            }
-
-        return scores;
-    }
-
-    private static void extractAndMapDoc(StringBuffer sb, String date, String headline, String docNo){
-        Document doc = new Document(docNo, extractHeadline(sb), extractSentences(sb), date);
-        documents.put(docNo, doc);
+    private static void extractAndMapDoc(StringBuffer sb, String date, String headline, String docNo, Map<String, Document> into, SentenceSplitter splitter){
+        splitter.split(sb);
+        Document doc = new Document(docNo, extractHeadline(sb), splitter.getText(), splitter.getBoundaries(), date);
+        into.put(docNo, doc);
     }
 
     private static String extractHeadline(StringBuffer sb){
@@ -542,208 +605,510 @@ public class QueryBiasedSummary {
         return line;
     }
 
-    private static double loadAverageDocLengths(){
-        int totalLength = 0;
-        for(int docId : docLengths.keySet()){
-            totalLength += docLengths.get(docId);
+    /*
+     * FOR READING THE DOCUMENT FROM THE INDEX
+     * 
+     */
+    // Prints a result's metadata and raw text. The metadata was loaded with the index, and the raw
+    // text comes from the document store, or otherwise from the file the index engine wrote for the
+    // docno, so viewing a document only reads the document
+    private static void viewDocument(IndexReader reader, int internalId) {
+        DocumentMetadata metadata = reader.getMetadata(internalId);
+        String text = recentlyViewed.get(internalId);
+        if (text == null) {
+            text = readRawDocument(internalId, metadata.getDocNo());
+            if (text == null) {
+                System.out.println("Error: Document with DOCNO/id " + metadata.getDocNo() + " not found.");
+                return;
+            }
+            recentlyViewed.put(internalId, text);
         }
-        return totalLength/(double) docLengths.size();
-    }
 
-    private static Map<Integer, Integer> loadDocLengths(String filePath) throws IOException {
-        Map<Integer, Integer> docLengths = new HashMap<>();
-        int internalId = 1;
-
-        BufferedReader reader = new BufferedReader(new FileReader(filePath));
-        String line;
-
-        while ((line = reader.readLine()) != null) {
-            try {
-                int length = Integer.parseInt(line.trim());
-                docLengths.put(internalId, length);
-                internalId++;
-            } catch (NumberFormatException e) {
-                System.err.println("Invalid number format in document lengths file: " + line);
-            }
+        // the metadata file's line, one field per line
+        String line = "docno: " + metadata.getDocNo() + " internal id: " + metadata.getInternalId()
+            + " date: " + metadata.getDate() + " headline: " + metadata.getHeadline();
+        for (String part : line.split(" (?=docno:|internal id:|date:|headline:)")) {
+            System.out.println(part);
         }
-        reader.close();
+        System.out.println("raw document: ");
 
-        return docLengths;
+        text.lines().forEach(System.out::println);
     }
 
-
-    /*
-     * FOR READING THE DOCUMENT FROM THE INDEX
-     * 
-     */
-    private static void getDoc(String path, String type, String identifier){
+    private static String readRawDocument(int internalId, String docNo) {
         try {
-            if (type.equals("docno") || type.equals("id")) {
-                HashMap <String, String> DocNoToPath = new HashMap<String, String>();
-                List<String> idToPath = new ArrayList<String>();
-
-                //for getting the metadata from internalId
-                HashMap<Integer, String> idToDocNo = new HashMap<Integer, String>();
-                
-                loadMapping(DocNoToPath, idToPath, path, idToDocNo, identifier, type);
-                if(type.equals("docno")){
-                    getDocumentByDocNo(identifier, DocNoToPath, path);
-                }else if (type.equals("id")){
-                    getDocumentById(identifier, idToPath, path, idToDocNo);
-                }
-            } else{
-                System.out.println("Please enter a valid identifier (docno or id)");
-                System.exit(1);
+            if (docStore != null) {
+                return docStore.getDocument(internalId);
             }
-        } catch (FileNotFoundException e) {
-            System.out.println("Error: The specified input file was not found: " + path);
-            System.exit(1);
+            // the index engine files each document under <year>/<month>/<day>, from its docno LAMMDDYY-NNNN
+            File documentFile = new File(indexDirectory + "/" + docNo.substring(6, 8) + "/" + docNo.substring(2, 4)
+                + "/" + docNo.substring(4, 6) + "/" + docNo + ".txt");
+            if (!documentFile.exists()) {
+                return null;
+            }
+            return new String(Files.readAllBytes(documentFile.toPath()));
         } catch (IOException e) {
-            System.out.println("Error: An I/O error occurred while processing the files.");
-            System.exit(1);
+            System.out.println("Error reading document: " + e.getMessage());
+            return null;
         }
     }
 
-    private static void loadMapping(HashMap <String, String> DocNoToPath, List<String> idToPath, String filePath, HashMap <Integer, String> idToDocNo, String identifier, String type){
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath + "/docnos.txt"))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Split the line by space
-                String[] parts = line.split(" ", 2);
+    // also how SentenceStats tokenizes sentences, so sentence terms line up with query terms
+    static List<String> splitQueryIntoTokens(String query) {
+        List<String> tokens = new ArrayList<>();
+        query = query.toLowerCase();
 
-                if (parts.length == 2) {
-                    DocNoToPath.put(parts[0], parts[1]);
-                    idToPath.add(parts[1]);
-                }
+        int start = 0;
+        int i;
 
-                //map the id to the docno
-                if(type.equals("id") && idToPath.size() >= Integer.parseInt(identifier)){
-                    idToDocNo.put(Integer.parseInt(identifier), extractLastLAWord(idToPath.get(Integer.parseInt(identifier)-1)));
+        for (i = 0; i < query.length(); ++i) {
+            char c = query.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                if (start != i) {
+                    String token = query.substring(start, i);
+                    tokens.add(token);
                 }
-
+                start = i + 1;
             }
-        } catch (IOException e) {
-            System.out.println("Error reading the file: " + e.getMessage());
         }
+
+        if (start != i) {
+            tokens.add(query.substring(start, i));
+        }
+
+        return tokens; 
     }
 
-    private static String extractLastLAWord(String path) {
-        String[] words = path.split("[/ ]");
-        String lastLAWord = null;
+}
 
-        for (String word : words) {
-            if (word.startsWith("LA")) {
-                lastLAWord = word; 
-                lastLAWord = lastLAWord.substring(0, lastLAWord.length() - 4);
-            }
-        }
-        return lastLAWord;
+// Everything a query needs from the index: lexicon, postings, doc lengths and metadata.
+// Nothing is written after open() returns, so any number of threads can share one reader
+class IndexReader {
+    // each part loads on its own background task, and a getter only waits for the part it reads
+    private final CompletableFuture<Map<Integer, List<DocIdCountPair>>> invertedIndex;
+    private final CompletableFuture<Map<Integer, DocumentMetadata>> documentMetadata;
+    private final CompletableFuture<Map<String, Integer>> lexicon;
+    private final CompletableFuture<Map<Integer, Integer>> docLengths;
+    private final CompletableFuture<Double> avgDocLength;
+    // completes once every part has finished loading
+    private final CompletableFuture<Void> allLoaded;
+
+    private IndexReader(CompletableFuture<Map<Integer, List<DocIdCountPair>>> invertedIndex, CompletableFuture<Map<Integer, DocumentMetadata>> documentMetadata,
+            CompletableFuture<Map<String, Integer>> lexicon, CompletableFuture<Map<Integer, Integer>> docLengths) {
+        this.invertedIndex = invertedIndex.thenApply(Collections::unmodifiableMap);
+        this.documentMetadata = documentMetadata.thenApply(Collections::unmodifiableMap);
+        this.lexicon = lexicon.thenApply(Collections::unmodifiableMap);
+        this.docLengths = docLengths.thenApply(Collections::unmodifiableMap);
+        this.avgDocLength = docLengths.thenApply(IndexReader::loadAverageDocLengths);
+        this.allLoaded = CompletableFuture.allOf(invertedIndex, documentMetadata, lexicon, docLengths);
     }
 
-    private static void getDocumentByDocNo(String identifier, HashMap <String, String> DocNoToPath, String path) throws FileNotFoundException, IOException {
-        String filePath = DocNoToPath.get(identifier);
-        String metadataPath = path + "/metadata/" + identifier + "-metadata.txt";
+    // starts loading every part of the index on the loader threads and returns without waiting for them
+    public static IndexReader open(String indexDirectory, String docLengthsFile, Executor loaders) {
+        //read the index
+        CompletableFuture<Map<Integer, List<DocIdCountPair>>> invertedIndex = CompletableFuture.supplyAsync(() -> loadInvertedIndex(indexDirectory), loaders);
+        //read the lexicon
+        CompletableFuture<Map<String, Integer>> lexicon = CompletableFuture.supplyAsync(() -> loadLexicon(indexDirectory), loaders);
+        // read all metadata
+        CompletableFuture<Map<Integer, DocumentMetadata>> documentMetadata = CompletableFuture.supplyAsync(() -> loadDocumentMetadata(indexDirectory), loaders);
+        // doc lengths
+        CompletableFuture<Map<Integer, Integer>> docLengths = CompletableFuture.supplyAsync(() -> {
+            try {
+                return loadDocLengths(docLengthsFile);
+            } catch (IOException e) {
+                // reported by the query that first needs the doc lengths, on the main thread
+                throw new UncheckedIOException("Error reading document lengths file: " + e.getMessage(), e);
+            }
+        }, loaders);
 
-        if(!DocNoToPath.containsKey(identifier)){
-            System.out.println("No document with that docno");
-            System.exit(1);
-        }
+        return new IndexReader(invertedIndex, documentMetadata, lexicon, docLengths);
+    }
 
-        File documentFile = new File(filePath);
+    public boolean isReady() {
+        return allLoaded.isDone();
+    }
 
-        File metadataFile = new File(metadataPath);
-        
-        read(documentFile, identifier, metadataFile);
+    public Integer getTermId(String term) {
+        return lexicon.join().get(term);
     }
 
-    private static void getDocumentById(String identifier, List<String> idToPath, String path, HashMap<Integer, String> idToDocNo){
-        // get the docno from the internalId
+    public List<DocIdCountPair> getPostings(int termId) {
+        return invertedIndex.join().getOrDefault(termId, new ArrayList<>());
+    }
 
-        int internalId = Integer.parseInt(identifier);
-        if(internalId > idToPath.size()){
-            System.out.println("No document with that ID");
-            System.exit(1);
-        }
+    public DocumentMetadata getMetadata(int docId) {
+        return documentMetadata.join().get(docId);
+    }
 
-        String docNo = idToDocNo.get(Integer.parseInt(identifier));
-        String metadataPath = path + "/metadata/" + docNo + "-metadata.txt";
+    public int getDocLength(int docId) {
+        return docLengths.join().get(docId);
+    }
 
-        File documentFile = new File(idToPath.get(internalId - 1));
-        File metadataFile = new File(metadataPath);
+    // internal ids run from 1 to this number
+    public int getMaxDocId() {
+        return docLengths.join().size();
+    }
 
+    public int getTotalDocs() {
+        return documentMetadata.join().size();
+    }
 
-        read(documentFile, identifier, metadataFile);
+    public double getAvgDocLength() {
+        return avgDocLength.join();
     }
 
-    private static void read(File documentFile, String identifier, File metadataFile){
-        if (!documentFile.exists()) {
-            System.out.println("Error: Document with DOCNO/id " + identifier + " not found.");
-            return;
-        }
-        // reaading the metadata
-        try (BufferedReader reader = new BufferedReader(new FileReader(metadataFile))) {
+    private static Map<String, Integer> loadLexicon(String indexPath) {
+        Map<String, Integer> lexicon = new HashMap<>();
+        
+        String lexiconPath = "/lexicon/lexicon.txt";
+    
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexPath + lexiconPath))) {
             String line;
             while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(" (?=docno:|internal id:|date:|headline:)"); 
-
-                for (String part : parts) {
-                    System.out.println(part);
+                String[] parts = line.trim().split(":");
+                if (parts.length == 2) {
+                    lexicon.put(parts[0], Integer.parseInt(parts[1]));
                 }
             }
-            System.out.println("raw document: ");
         } catch (IOException e) {
-            System.out.println("Error reading document: " + e.getMessage());
+            System.err.println("Error reading lexicon file: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            System.err.println("Error parsing term ID: " + e.getMessage());
         }
+    
+        return lexicon;
+    }
+
+    private static Map<Integer, List<DocIdCountPair>> loadInvertedIndex(String indexPath) {
+        Map<Integer, List<DocIdCountPair>> index = new HashMap<>();
+        String invertedIndexPath = "/invertedIndex/invertedIndex.txt";
 
-        //reading the file contents
-        try (BufferedReader reader = new BufferedReader(new FileReader(documentFile))) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexPath + invertedIndexPath))) {
             String line;
+            Integer currentTermId = null;
+
             while ((line = reader.readLine()) != null) {
-                System.out.println(line);
+                line = line.trim(); 
+
+                if (line.startsWith("Term ID:")) {
+                    currentTermId = Integer.parseInt(line.split(":")[1].trim());
+                    index.put(currentTermId, new ArrayList<>());
+                } else if (line.startsWith("DocID:") && currentTermId != null) {
+                    String[] parts = line.split(",");
+                    Integer docId = Integer.parseInt(parts[0].split(":")[1].trim());
+                    Integer count = Integer.parseInt(parts[1].split(":")[1].trim());
+
+                    index.get(currentTermId).add(new DocIdCountPair(docId, count));
+                }
             }
         } catch (IOException e) {
-            System.out.println("Error reading document: " + e.getMessage());
+            System.err.println("Error reading inverted index file: " + e.getMessage());
         }
+
+        return index;
     }
 
-    private static List<String> splitQueryIntoTokens(String query) {
-        List<String> tokens = new ArrayList<>();
-        query = query.toLowerCase();
+    private static Map<Integer, DocumentMetadata> loadDocumentMetadata(String indexPath) {
+        Map<Integer, DocumentMetadata> metadataMap = new HashMap<>();
+        
+        File dir = new File(indexPath + "/metadata");
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".txt"));
 
-        int start = 0;
-        int i;
+        if (files != null) {
+            int internalId = -1;
+            for (File file : files) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                    String line;
+                    String docNo = "";
+                    String date = "";
+                    String headline = "";
 
-        for (i = 0; i < query.length(); ++i) {
-            char c = query.charAt(i);
-            if (!Character.isLetterOrDigit(c)) {
-                if (start != i) {
-                    String token = query.substring(start, i);
-                    tokens.add(token);
+                    while ((line = reader.readLine()) != null) {
+                        // date and headline run up to the next field, so they're cut from the untrimmed line
+                        int dateStart = line.indexOf(" date: ");
+                        int headlineStart = dateStart < 0 ? -1 : line.indexOf(" headline: ", dateStart);
+                        if (headlineStart >= 0) {
+                            date = line.substring(dateStart + " date: ".length(), headlineStart);
+                            headline = line.substring(headlineStart + " headline: ".length());
+                        }
+                        line = line.trim();
+                        String[] parts = line.split(" ");
+                        for (int i = 0; i < parts.length; i++) {
+                            switch (parts[i]) {
+                                case "docno:":
+                                    docNo = parts[++i];
+                                    break;
+                                case "id:":
+                                    internalId = Integer.parseInt(parts[++i]);
+                                    break;
+                            }
+                        }
+                    }
+                    metadataMap.put(internalId, new DocumentMetadata(docNo, internalId, date, headline));
+                } catch (IOException e) {
+                    System.err.println("Error reading metadata file: " + e.getMessage());
+                } catch (NumberFormatException e) {
+                    System.err.println("Error parsing internal ID: " + e.getMessage());
                 }
-                start = i + 1;
             }
+        } else {
+            System.err.println("No metadata files found in the specified directory.");
         }
 
-        if (start != i) {
-            tokens.add(query.substring(start, i));
+        return metadataMap;
+    }
+
+    private static double loadAverageDocLengths(Map<Integer, Integer> docLengths){
+        int totalLength = 0;
+        for(int docId : docLengths.keySet()){
+            totalLength += docLengths.get(docId);
         }
+        return totalLength/(double) docLengths.size();
+    }
 
-        return tokens; 
+    private static Map<Integer, Integer> loadDocLengths(String filePath) throws IOException {
+        Map<Integer, Integer> docLengths = new HashMap<>();
+        int internalId = 1;
+
+        BufferedReader reader = new BufferedReader(new FileReader(filePath));
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            try {
+                int length = Integer.parseInt(line.trim());
+                docLengths.put(internalId, length);
+                internalId++;
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid number format in document lengths file: " + line);
+            }
+        }
+        reader.close();
+
+        return docLengths;
+    }
+}
+
+// Runs queries against a shared IndexReader. A searcher owns the scratch buffers a query
+// scores into, so it's cheap to reuse but must only be used by one thread at a time
+class Searcher {
+    private final IndexReader reader;
+    private ScoreAccumulator scores;
+
+    public Searcher(IndexReader reader) {
+        this.reader = reader;
+    }
+
+    public IndexReader getReader() {
+        return reader;
     }
 
+    // top k documents by BM25 score, ties broken by docno
+    public List<Map.Entry<Integer, Double>> search(List<String> queryTokens, int k) {
+        if (scores == null) {
+            scores = new ScoreAccumulator(reader.getMaxDocId() + 1);
+        }
+        calculateBM25(queryTokens, scores);
+
+        ScoreAccumulator queryScores = scores;
+        List<Map.Entry<Integer, Double>> rankedDocs = scores.getTouchedDocs().stream()
+            .map(docId -> Map.entry(docId, queryScores.get(docId)))
+            .sorted(rankingOrder())
+            .limit(k)
+            .collect(Collectors.toList());
+        scores.clear();
+    
+        return rankedDocs;
+    }
+
+    private Comparator<Map.Entry<Integer, Double>> rankingOrder() {
+        return (a, b) -> {
+            int cmp = Double.compare(b.getValue(), a.getValue());
+            if (cmp != 0) return cmp;
+            // Tie-break by docNo lexicographically
+            return reader.getMetadata(a.getKey()).getDocNo()
+                    .compareTo(reader.getMetadata(b.getKey()).getDocNo());
+        };
+    }
+
+    // Splits the docId space into ranges and scores each one on its own fork-join task,
+    // each with its own accumulator and top k, then merges the per-range top k lists
+    public List<Map.Entry<Integer, Double>> searchByDocIdRanges(List<String> queryTokens, int k, int scoringPartitions, ForkJoinPool scoringPool) {
+        List<List<DocIdCountPair>> termPostings = new ArrayList<>();
+        List<Double> termIdfs = new ArrayList<>();
+        for (String term : queryTokens) {
+            Integer termID = reader.getTermId(term);
+            if (termID == null) continue; // Skip terms not in the lexicon
+            List<DocIdCountPair> postingsList = reader.getPostings(termID);
+            int n_t = postingsList.size();
+            termPostings.add(postingsList);
+            termIdfs.add(Math.log((reader.getTotalDocs() - n_t + 0.5) / (n_t + 0.5)));
+        }
+
+        // docIds run from 1 to the number of documents
+        int maxDocId = reader.getMaxDocId();
+        int rangeSize = (maxDocId + scoringPartitions - 1) / scoringPartitions;
+
+        List<ForkJoinTask<List<Map.Entry<Integer, Double>>>> tasks = new ArrayList<>();
+        for (int start = 1; start <= maxDocId; start += rangeSize) {
+            int rangeStart = start;
+            int rangeEnd = Math.min(start + rangeSize, maxDocId + 1);
+            tasks.add(scoringPool.submit(() -> scoreDocIdRange(termPostings, termIdfs, rangeStart, rangeEnd, k)));
+        }
+
+        List<Map.Entry<Integer, Double>> merged = new ArrayList<>();
+        for (ForkJoinTask<List<Map.Entry<Integer, Double>>> task : tasks) {
+            merged.addAll(task.join());
+        }
+
+        return merged.stream()
+            .sorted(rankingOrder())
+            .limit(k)
+            .collect(Collectors.toList());
+    }
+
+    private List<Map.Entry<Integer, Double>> scoreDocIdRange(List<List<DocIdCountPair>> termPostings, List<Double> termIdfs, int rangeStart, int rangeEnd, int k) {
+        double k1 = 1.2;
+        double b = 0.75;
+        double[] scores = new double[rangeEnd - rangeStart];
+        boolean[] seen = new boolean[rangeEnd - rangeStart];
+
+        for (int t = 0; t < termPostings.size(); t++) {
+            List<DocIdCountPair> postingsList = termPostings.get(t);
+            double idf = termIdfs.get(t);
+
+            // postings are sorted by docId, so only the slice inside this range is read
+            for (int i = firstPostingAtOrAfter(postingsList, rangeStart); i < postingsList.size(); i++) {
+                DocIdCountPair pair = postingsList.get(i);
+                int docID = pair.getDocId();
+                if (docID >= rangeEnd) break;
+                int f_td = pair.getCount();
+                int docLength = reader.getDocLength(docID);
+
+                double bm25Score = idf * ((f_td) / (f_td + (k1 * (1 - b + b * (docLength / reader.getAvgDocLength())))));
+                scores[docID - rangeStart] += bm25Score;
+                seen[docID - rangeStart] = true;
+            }
+        }
+
+        // keep the k best documents of this range, worst one at the head of the queue
+        PriorityQueue<Map.Entry<Integer, Double>> topK = new PriorityQueue<>(rankingOrder().reversed());
+        for (int i = 0; i < scores.length; i++) {
+            if (!seen[i]) continue;
+            topK.add(Map.entry(rangeStart + i, scores[i]));
+            if (topK.size() > k) {
+                topK.poll();
+            }
+        }
+        return new ArrayList<>(topK);
+    }
+
+    private static int firstPostingAtOrAfter(List<DocIdCountPair> postingsList, int docId) {
+        int low = 0;
+        int high = postingsList.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (postingsList.get(mid).getDocId() < docId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void calculateBM25(List<String> queryTokens, ScoreAccumulator scores){
+        double k1 = 1.2;
+        double b = 0.75;
+
+            for (String term : queryTokens) {
+                Integer termID = reader.getTermId(term);
+                if (termID == null) continue; // Skip terms not in the lexicon
+    
+                List<DocIdCountPair> postingsList = reader.getPostings(termID);
+                int n_t = postingsList.size();
+                double idf = Math.log((reader.getTotalDocs() - n_t + 0.5) / (n_t + 0.5));
+    
+                for (DocIdCountPair pair : postingsList) {
+                    int docID = pair.getDocId();
+                    int f_td = pair.getCount();
+                    int docLength = reader.getDocLength(docID);
+    
+                    double bm25Score = idf * ((f_td) / (f_td + (k1 * (1 - b + b * (docLength / reader.getAvgDocLength())))));
+                    scores.add(docID, bm25Score);
+                }
+    
+            }
+    }
+}
+
+// Dense score array indexed by docId, so ranking a query doesn't box a score per posting
+class ScoreAccumulator {
+    private double[] scores;
+    private boolean[] seen;
+    private List<Integer> touchedDocs;
+
+    public ScoreAccumulator(int size) {
+        this.scores = new double[size];
+        this.seen = new boolean[size];
+        this.touchedDocs = new ArrayList<>();
+    }
+
+    public void add(int docId, double score) {
+        if (docId >= scores.length) {
+            int newSize = Math.max(docId + 1, scores.length * 2);
+            scores = Arrays.copyOf(scores, newSize);
+            seen = Arrays.copyOf(seen, newSize);
+        }
+        if (!seen[docId]) {
+            seen[docId] = true;
+            touchedDocs.add(docId);
+        }
+        scores[docId] += score;
+    }
+
+    public double get(int docId) {
+        return scores[docId];
+    }
+
+    public List<Integer> getTouchedDocs() {
+        return touchedDocs;
+    }
+
+    // reset only the documents this query touched
+    public void clear() {
+        for (int docId : touchedDocs) {
+            scores[docId] = 0.0;
+            seen[docId] = false;
+        }
+        touchedDocs.clear();
+    }
 }
 
 class Document {
     private String docNo;
     private String headline;
-    private List<String> sentences;
+    // all sentences back to back as UTF-8, sentence i being text[boundaries[i], boundaries[i + 1]).
+    // One array per document instead of a String per sentence keeps a loaded collection small,
+    // and the strings are only made again when a snippet is built
+    private byte[] text;
+    private int[] boundaries;
     private String date;
+    // built the first time a snippet is made from this document
+    private SentenceStats sentenceStats;
 
     // Constructor
     public Document(String docNo, String headline, List<String> sentences, String date) {
         this.docNo = docNo;
         this.headline = headline;
-        this.sentences = sentences;
+        this.date = date;
+        packSentences(sentences);
+    }
+
+    public Document(String docNo, String headline, byte[] text, int[] boundaries, String date) {
+        this.docNo = docNo;
+        this.headline = headline;
+        this.text = text;
+        this.boundaries = boundaries;
         this.date = date;
     }
 
@@ -755,7 +1120,20 @@ class Document {
         return headline;
     }
 
-    public List<String> getSentences() {
+    public synchronized int getSentenceCount() {
+        return boundaries.length - 1;
+    }
+
+    public synchronized String getSentence(int i) {
+        return new String(text, boundaries[i], boundaries[i + 1] - boundaries[i], StandardCharsets.UTF_8);
+    }
+
+    // materialises every sentence, meant for building a snippet rather than keeping around
+    public synchronized List<String> getSentences() {
+        List<String> sentences = new ArrayList<>(boundaries.length - 1);
+        for (int i = 0; i < boundaries.length - 1; i++) {
+            sentences.add(getSentence(i));
+        }
         return sentences;
     }
 
@@ -771,14 +1149,714 @@ class Document {
         this.headline = headline;
     }
 
-    public void setSentences(List<String> sentences) {
-        this.sentences = sentences;
+    public synchronized SentenceStats getSentenceStats() {
+        if (sentenceStats == null) {
+            sentenceStats = new SentenceStats(getSentences());
+        }
+        return sentenceStats;
+    }
+
+    public synchronized void setSentences(List<String> sentences) {
+        packSentences(sentences);
+        this.sentenceStats = null;
     }
 
     public void setDate(String date) {
         this.date = date;
     }
 
+    private void packSentences(List<String> sentences) {
+        List<byte[]> encoded = new ArrayList<>(sentences.size());
+        boundaries = new int[sentences.size() + 1];
+        for (int i = 0; i < sentences.size(); i++) {
+            encoded.add(sentences.get(i).getBytes(StandardCharsets.UTF_8));
+            boundaries[i + 1] = boundaries[i] + encoded.get(i).length;
+        }
+        text = new byte[boundaries[sentences.size()]];
+        for (int i = 0; i < encoded.size(); i++) {
+            System.arraycopy(encoded.get(i), 0, text, boundaries[i], encoded.get(i).length);
+        }
+    }
+
+    // rough heap footprint, strings counted as 2 bytes per char plus object headers
+    public synchronized long estimateBytes() {
+        return 64 + 40 * 3 + 2L * (docNo.length() + headline.length() + date.length())
+            + 16 + text.length + 16 + 4L * boundaries.length;
+    }
+
+}
+
+// Splits the <P> paragraphs of a document's <TEXT> and <GRAPHIC> sections into sentences in one
+// pass, straight into a UTF-8 array plus sentence boundaries. The boundaries are the ones the
+// original regex and StringBuilder splitter produced: whitespace runs are collapsed to one
+// space, paragraphs and sentences are trimmed, and a sentence ends at '.', '!' or '?' followed by
+// whitespace unless it ends with one of the abbreviations, which are looked up backwards from the
+// punctuation in a trie of their reversed spellings
+class SentenceSplitter {
+    private static final String[] ABBREVIATIONS = {
+        "Dr.", "Mr.", "Mrs.", "Ms.", "Inc.", "U.S.", "e.g.", "i.e.", "etc.", "Jr.", "Sr.", "Prof.", "Rev."};
+    private static final TrieNode REVERSED_ABBREVIATIONS = new TrieNode();
+
+    static {
+        for (String abbreviation : ABBREVIATIONS) {
+            TrieNode node = REVERSED_ABBREVIATIONS;
+            for (int i = abbreviation.length() - 1; i >= 0; i--) {
+                node = node.child(abbreviation.charAt(i), true);
+            }
+            node.terminal = true;
+        }
+    }
+
+    // the section being split, with its whitespace runs collapsed in place
+    private char[] content = new char[4096];
+    private byte[] text = new byte[4096];
+    private int textLength = 0;
+    private int[] boundaries = new int[64];
+    private int numSentences = 0;
+
+    // splits a whole document, replacing whatever was split before
+    public void split(StringBuffer document) {
+        textLength = 0;
+        numSentences = 0;
+        boundaries[0] = 0;
+
+        // the first <TEXT> section, then every <GRAPHIC> section
+        int start = document.indexOf("<TEXT>");
+        int end = start < 0 ? -1 : document.indexOf("</TEXT>", start + "<TEXT>".length());
+        if (end >= 0) {
+            splitSection(document, start + "<TEXT>".length(), end);
+        }
+        int from = 0;
+        while ((start = document.indexOf("<GRAPHIC>", from)) >= 0) {
+            end = document.indexOf("</GRAPHIC>", start + "<GRAPHIC>".length());
+            if (end < 0) {
+                break;
+            }
+            splitSection(document, start + "<GRAPHIC>".length(), end);
+            from = end + "</GRAPHIC>".length();
+        }
+    }
+
+    public byte[] getText() {
+        return Arrays.copyOf(text, textLength);
+    }
+
+    // numSentences + 1 offsets into getText(), sentence i being [boundaries[i], boundaries[i + 1])
+    public int[] getBoundaries() {
+        return Arrays.copyOf(boundaries, numSentences + 1);
+    }
+
+    private void splitSection(StringBuffer document, int start, int end) {
+        int length = end - start;
+        if (content.length < length) {
+            content = new char[Math.max(length, 2 * content.length)];
+        }
+        document.getChars(start, end, content, 0);
+
+        // collapse runs of regex \s ([ \t\n\x0B\f\r]) into single spaces
+        int collapsed = 0;
+        boolean inRun = false;
+        for (int i = 0; i < length; i++) {
+            char c = content[i];
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+                if (!inRun) {
+                    content[collapsed++] = ' ';
+                    inRun = true;
+                }
+            } else {
+                content[collapsed++] = c;
+                inRun = false;
+            }
+        }
+
+        // every <P> with a closing </P> after it is a paragraph
+        int from = 0;
+        int paragraphStart;
+        while ((paragraphStart = indexOf("<P>", from, collapsed)) >= 0) {
+            int paragraphEnd = indexOf("</P>", paragraphStart + "<P>".length(), collapsed);
+            if (paragraphEnd < 0) {
+                break;
+            }
+            splitParagraph(paragraphStart + "<P>".length(), paragraphEnd);
+            from = paragraphEnd + "</P>".length();
+        }
+    }
+
+    private void splitParagraph(int start, int end) {
+        while (start < end && content[start] <= ' ') {
+            start++;
+        }
+        while (end > start && content[end - 1] <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return;
+        }
+
+        int sentenceStart = start;
+        for (int i = start; i < end; i++) {
+            char c = content[i];
+            if ((c == '.' || c == '!' || c == '?') && i + 1 < end && Character.isWhitespace(content[i + 1])
+                    && !endsWithAbbreviation(sentenceStart, i)) {
+                addSentence(sentenceStart, i + 1);
+                sentenceStart = i + 1;
+            }
+        }
+        if (sentenceStart < end) {
+            addSentence(sentenceStart, end);
+        }
+    }
+
+    // walks back from the punctuation at last, never past the start of the sentence
+    private boolean endsWithAbbreviation(int sentenceStart, int last) {
+        TrieNode node = REVERSED_ABBREVIATIONS;
+        for (int i = last; i >= sentenceStart; i--) {
+            node = node.child(content[i], false);
+            if (node == null) {
+                return false;
+            }
+            if (node.terminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // appends the trimmed sentence as UTF-8, with unpaired surrogates as '?' like String.getBytes
+    private void addSentence(int start, int end) {
+        while (start < end && content[start] <= ' ') {
+            start++;
+        }
+        while (end > start && content[end - 1] <= ' ') {
+            end--;
+        }
+        if (text.length < textLength + 3 * (end - start)) {
+            text = Arrays.copyOf(text, Math.max(textLength + 3 * (end - start), 2 * text.length));
+        }
+        for (int i = start; i < end; i++) {
+            char c = content[i];
+            if (c < 0x80) {
+                text[textLength++] = (byte) c;
+            } else if (c < 0x800) {
+                text[textLength++] = (byte) (0xC0 | (c >> 6));
+                text[textLength++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(content[i + 1])) {
+                int codePoint = Character.toCodePoint(c, content[++i]);
+                text[textLength++] = (byte) (0xF0 | (codePoint >> 18));
+                text[textLength++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                text[textLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                text[textLength++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                text[textLength++] = '?';
+            } else {
+                text[textLength++] = (byte) (0xE0 | (c >> 12));
+                text[textLength++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                text[textLength++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        if (boundaries.length < numSentences + 2) {
+            boundaries = Arrays.copyOf(boundaries, 2 * boundaries.length);
+        }
+        boundaries[++numSentences] = textLength;
+    }
+
+    private int indexOf(String target, int from, int end) {
+        int last = end - target.length();
+        for (int i = from; i <= last; i++) {
+            int matched = 0;
+            while (matched < target.length() && content[i + matched] == target.charAt(matched)) {
+                matched++;
+            }
+            if (matched == target.length()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        private boolean terminal = false;
+
+        private TrieNode child(char c, boolean create) {
+            TrieNode child = children.get(c);
+            if (child == null && create) {
+                child = new TrieNode();
+                children.put(c, child);
+            }
+            return child;
+        }
+    }
+}
+
+// A document's sentences tokenized once, for scoring them against any number of queries.
+// Terms get ids local to the document; each sentence keeps its distinct term ids in order with
+// their counts, and the document keeps how many sentences contain each term and the average
+// sentence length. Scoring a sentence is then a few binary searches instead of re-tokenizing
+// every sentence of the document for every sentence and query term
+class SentenceStats {
+    private final Map<String, Integer> termIds = new HashMap<>();
+    private final int[][] sentenceTerms;
+    private final int[][] sentenceCounts;
+    private final int[] sentenceLengths;
+    private final int[] sentenceDf;
+    private final double avgSentenceLength;
+
+    public SentenceStats(List<String> sentences) {
+        int numSentences = sentences.size();
+        sentenceTerms = new int[numSentences][];
+        sentenceCounts = new int[numSentences][];
+        sentenceLengths = new int[numSentences];
+        List<Integer> df = new ArrayList<>();
+
+        int totalLength = 0;
+        for (int i = 0; i < numSentences; i++) {
+            List<String> words = QueryBiasedSummary.splitQueryIntoTokens(sentences.get(i));
+            sentenceLengths[i] = words.size();
+            totalLength += words.size();
+
+            int[] ids = new int[words.size()];
+            for (int w = 0; w < ids.length; w++) {
+                Integer id = termIds.get(words.get(w));
+                if (id == null) {
+                    id = termIds.size();
+                    termIds.put(words.get(w), id);
+                    df.add(0);
+                }
+                ids[w] = id;
+            }
+            Arrays.sort(ids);
+
+            // collapse the sorted ids into (distinct id, count) pairs
+            int distinct = 0;
+            int[] counts = new int[ids.length];
+            for (int w = 0; w < ids.length; w++) {
+                if (distinct > 0 && ids[distinct - 1] == ids[w]) {
+                    counts[distinct - 1]++;
+                } else {
+                    ids[distinct] = ids[w];
+                    counts[distinct++] = 1;
+                    df.set(ids[w], df.get(ids[w]) + 1);
+                }
+            }
+            sentenceTerms[i] = Arrays.copyOf(ids, distinct);
+            sentenceCounts[i] = Arrays.copyOf(counts, distinct);
+        }
+
+        sentenceDf = df.stream().mapToInt(Integer::intValue).toArray();
+        avgSentenceLength = totalLength / (double) numSentences;
+    }
+
+    // the local id of every query token, -1 for tokens that aren't in any sentence
+    public int[] getTermIds(List<String> queryTokens) {
+        int[] ids = new int[queryTokens.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = termIds.getOrDefault(queryTokens.get(i), -1);
+        }
+        return ids;
+    }
+
+    // BM25 of one sentence, treating the document's sentences as the collection
+    public double score(int sentence, int[] queryTermIds, double k1, double b) {
+        double sentenceLength = sentenceLengths[sentence];
+        double score = 0.0;
+        for (int termId : queryTermIds) {
+            int f = 0;
+            int n = 0;
+            if (termId >= 0) {
+                int index = Arrays.binarySearch(sentenceTerms[sentence], termId);
+                f = index >= 0 ? sentenceCounts[sentence][index] : 0;
+                n = sentenceDf[termId];
+            }
+
+            double idf = Math.log((sentenceLengths.length - n + 0.5) / (n + 0.5) + 1);
+            score += idf * ((f * (k1 + 1)) / (f + k1 * (1 - b + b * (sentenceLength / avgSentenceLength))));
+        }
+        return score;
+    }
+}
+
+class CachedResult {
+    private List<Integer> internalIds;
+    private List<String> docNos;
+    private List<String> renderedResults;
+
+    public CachedResult(List<Integer> internalIds, List<String> docNos, List<String> renderedResults) {
+        this.internalIds = internalIds;
+        this.docNos = docNos;
+        this.renderedResults = renderedResults;
+    }
+
+    public List<Integer> getInternalIds() {
+        return internalIds;
+    }
+
+    public List<String> getDocNos() {
+        return docNos;
+    }
+
+    public List<String> getRenderedResults() {
+        return renderedResults;
+    }
+
+    // rough heap footprint, strings counted as 2 bytes per char plus object headers
+    public long estimateBytes(String key) {
+        long bytes = 64 + 40 + 2L * key.length();
+        for (String docNo : docNos) {
+            bytes += 40 + 2L * docNo.length();
+        }
+        bytes += 16L * internalIds.size();
+        for (String result : renderedResults) {
+            bytes += 40 + 2L * result.length();
+        }
+        return bytes;
+    }
+}
+
+// LRU cache of query results keyed by the normalised query tokens, bounded by an estimated size in bytes
+class ResultCache {
+    private final long maxBytes;
+    private final LinkedHashMap<String, CachedResult> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized CachedResult get(String key) {
+        CachedResult result = entries.get(key);
+        if (result == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    public synchronized void put(String key, CachedResult result) {
+        long size = result.estimateBytes(key);
+        if (size > maxBytes) {
+            return;
+        }
+        CachedResult previous = entries.put(key, result);
+        if (previous != null) {
+            currentBytes -= previous.estimateBytes(key);
+        }
+        currentBytes += size;
+
+        // evict the least recently used queries until the cache fits again
+        Iterator<Map.Entry<String, CachedResult>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, CachedResult> eldest = it.next();
+            currentBytes -= eldest.getValue().estimateBytes(eldest.getKey());
+            it.remove();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
+
+// Reads one of the compressed stores the index engine writes: docstore/ (raw documents) or
+// sentences/ (segmented documents). Records are packed in internal id order into blocks of
+// about 64 KB, each deflated on its own, so a lookup inflates one block. Recently used blocks are
+// kept inflated in an LRU cache, which makes the neighbours of a fetched document and repeated
+// fetches almost free
+class BlockDocumentStore implements Closeable {
+    private final FileChannel blocks;
+    private final int[] blockFirstIds;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final int numDocs;
+    private final long maxCacheBytes;
+    private final LinkedHashMap<Integer, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    private BlockDocumentStore(FileChannel blocks, int numDocs, int[] blockFirstIds, long[] blockOffsets, int[] blockLengths, long maxCacheBytes) {
+        this.blocks = blocks;
+        this.numDocs = numDocs;
+        this.blockFirstIds = blockFirstIds;
+        this.blockOffsets = blockOffsets;
+        this.blockLengths = blockLengths;
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    public static boolean exists(String indexPath, String storeName) {
+        String storePath = indexPath + "/" + storeName + "/";
+        return new File(storePath + "blocks.idx").exists() && new File(storePath + storeName + ".bin").exists();
+    }
+
+    public static BlockDocumentStore open(String indexPath, String storeName, long maxCacheBytes) throws IOException {
+        String storePath = indexPath + "/" + storeName + "/";
+        try (DataInputStream index = new DataInputStream(new BufferedInputStream(new FileInputStream(storePath + "blocks.idx")))) {
+            int numDocs = index.readInt();
+            int numBlocks = index.readInt();
+            int[] firstIds = new int[numBlocks];
+            long[] offsets = new long[numBlocks];
+            int[] lengths = new int[numBlocks];
+            for (int i = 0; i < numBlocks; i++) {
+                firstIds[i] = index.readInt();
+                offsets[i] = index.readLong();
+                lengths[i] = index.readInt();
+            }
+            FileChannel blocks = FileChannel.open(Paths.get(storePath + storeName + ".bin"), StandardOpenOption.READ);
+            return new BlockDocumentStore(blocks, numDocs, firstIds, offsets, lengths, maxCacheBytes);
+        }
+    }
+
+    // the raw <DOC>...</DOC> text of a document in docstore/
+    public String getDocument(int internalId) throws IOException {
+        return new String(getRecord(internalId), StandardCharsets.UTF_8);
+    }
+
+    public byte[] getRecord(int internalId) throws IOException {
+        int block = findBlock(internalId);
+        if (block < 0) {
+            throw new IOException("No document with id " + internalId + " in the store");
+        }
+
+        byte[] inflated = getBlock(block);
+        ByteBuffer header = ByteBuffer.wrap(inflated);
+        int count = header.getInt(0);
+        int index = internalId - blockFirstIds[block];
+        int dataStart = 4 + 4 * (count + 1);
+        int start = header.getInt(4 + 4 * index);
+        int end = header.getInt(4 + 4 * (index + 1));
+        return Arrays.copyOfRange(inflated, dataStart + start, dataStart + end);
+    }
+
+    // the last block starting at or before internalId
+    private int findBlock(int internalId) {
+        if (internalId < 1 || internalId > numDocs) {
+            return -1;
+        }
+        int low = 0;
+        int high = blockFirstIds.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockFirstIds[mid] <= internalId) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private byte[] getBlock(int block) throws IOException {
+        synchronized (this) {
+            byte[] cached = cache.get(block);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+
+        // inflate outside the lock, two threads missing on the same block just both do the work
+        byte[] inflated = inflate(block);
+        synchronized (this) {
+            if (inflated.length <= maxCacheBytes && cache.put(block, inflated) == null) {
+                cacheBytes += inflated.length;
+                // evict the least recently used blocks until the cache fits again
+                Iterator<Map.Entry<Integer, byte[]>> it = cache.entrySet().iterator();
+                while (cacheBytes > maxCacheBytes && it.hasNext()) {
+                    cacheBytes -= it.next().getValue().length;
+                    it.remove();
+                }
+            }
+        }
+        return inflated;
+    }
+
+    private byte[] inflate(int block) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(blockLengths[block]);
+        while (compressed.hasRemaining()) {
+            if (blocks.read(compressed, blockOffsets[block] + compressed.position()) < 0) {
+                throw new IOException("Document store ends in the middle of block " + block);
+            }
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array());
+            ByteArrayOutputStream out = new ByteArrayOutputStream(blockLengths[block] * 4);
+            byte[] buffer = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Block " + block + " of the document store is truncated");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Block " + block + " of the document store is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public void close() throws IOException {
+        blocks.close();
+    }
+}
+
+// LRU cache of parsed documents keyed by internal id, bounded by an estimated size in bytes
+class DocumentCache {
+    private final long maxBytes;
+    private final LinkedHashMap<Integer, Document> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public DocumentCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized Document get(int internalId) {
+        Document document = entries.get(internalId);
+        if (document == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return document;
+    }
+
+    public synchronized void put(int internalId, Document document) {
+        if (document == null) {
+            return;
+        }
+        long size = document.estimateBytes();
+        if (size > maxBytes) {
+            return;
+        }
+        Document previous = entries.put(internalId, document);
+        if (previous != null) {
+            currentBytes -= previous.estimateBytes();
+        }
+        currentBytes += size;
+
+        // evict the least recently used documents until the cache fits again
+        Iterator<Map.Entry<Integer, Document>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            currentBytes -= it.next().getValue().estimateBytes();
+            it.remove();
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
+
+// A document together with the sorted lexicon ids of the query terms its snippet was built for
+class SnippetKey {
+    private final int internalId;
+    private final int[] termIds;
+
+    public SnippetKey(int internalId, int[] termIds) {
+        this.internalId = internalId;
+        this.termIds = termIds;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof SnippetKey)) {
+            return false;
+        }
+        SnippetKey key = (SnippetKey) other;
+        return internalId == key.internalId && Arrays.equals(termIds, key.termIds);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * internalId + Arrays.hashCode(termIds);
+    }
+
+    public long estimateBytes() {
+        return 32 + 16 + 4L * termIds.length;
+    }
+}
+
+// LRU cache of query-biased summaries, so a popular document that shows up for related queries
+// isn't scored sentence by sentence again. Bounded by an estimated size in bytes
+class SnippetCache {
+    private final long maxBytes;
+    private final LinkedHashMap<SnippetKey, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public SnippetCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized String get(SnippetKey key) {
+        String snippet = entries.get(key);
+        if (snippet == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return snippet;
+    }
+
+    public synchronized void put(SnippetKey key, String snippet) {
+        long size = estimateBytes(key, snippet);
+        if (size > maxBytes) {
+            return;
+        }
+        String previous = entries.put(key, snippet);
+        if (previous != null) {
+            currentBytes -= estimateBytes(key, previous);
+        }
+        currentBytes += size;
+
+        // evict the least recently used snippets until the cache fits again
+        Iterator<Map.Entry<SnippetKey, String>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<SnippetKey, String> eldest = it.next();
+            currentBytes -= estimateBytes(eldest.getKey(), eldest.getValue());
+            it.remove();
+        }
+    }
+
+    // rough heap footprint, strings counted as 2 bytes per char plus object headers
+    private static long estimateBytes(SnippetKey key, String snippet) {
+        return 64 + key.estimateBytes() + 40 + 2L * snippet.length();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
 }
 
 class DocIdCountPair {
@@ -0,0 +1,628 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+public class SearchServer {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Please use both arguements when running the program (index directory and port)");
+            System.exit(1);
+        }
+
+        String indexDirectory = args[0];
+        int port = 0;
+        try {
+            port = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Port must be a number");
+            System.exit(1);
+        }
+
+        if (!new File(indexDirectory).exists()) {
+            System.out.println("Index Path Doesn't Exist");
+            System.exit(1);
+        }
+
+        System.out.println("Starting to load the inverted index into memmory");
+        // the reader is immutable once loaded, so every request thread can share it without locks
+        IndexReader reader = IndexReader.open(indexDirectory);
+
+        // the index stays loaded, every request only pays for its own query
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/search", exchange -> handleSearch(exchange, new Searcher(reader)));
+        server.createContext("/boolean", exchange -> handleBoolean(exchange, new Searcher(reader)));
+        server.createContext("/doc", exchange -> handleDoc(exchange, new Searcher(reader)));
+        server.setExecutor(newRequestExecutor());
+        server.start();
+
+        System.out.println("Finished Loading the Index! Listening on port " + port);
+    }
+
+    // One virtual thread per request, so requests blocked on reading documents don't hold on to
+    // platform threads. Virtual threads need Java 21, older JVMs fall back to a cached thread pool
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // GET /search?q=<query>&k=<number of results, default 10>
+    private static void handleSearch(HttpExchange exchange, Searcher searcher) throws IOException {
+        Map<String, String> params = parseQueryString(exchange);
+        String query = params.get("q");
+        if (query == null) {
+            sendJson(exchange, 400, "{\"error\": \"missing q parameter\"}");
+            return;
+        }
+
+        int k = 10;
+        try {
+            if (params.containsKey("k")) {
+                k = Integer.parseInt(params.get("k"));
+            }
+        } catch (NumberFormatException e) {
+            k = -1;
+        }
+        if (k < 0) {
+            sendJson(exchange, 400, "{\"error\": \"k must be a non-negative number\"}");
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        List<Map.Entry<Integer, Double>> rankedDocs = searcher.rankBM25(Searcher.splitQueryIntoTokens(query), k);
+        long endTime = System.nanoTime();
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"query\": ").append(quote(query))
+            .append(", \"took_ms\": ").append(String.format("%.3f", (endTime - startTime) / 1e6))
+            .append(", \"results\": [");
+        int rank = 1;
+        for (Map.Entry<Integer, Double> entry : rankedDocs) {
+            if (rank > 1) json.append(", ");
+            json.append("{\"rank\": ").append(rank++)
+                .append(", \"docno\": ").append(quote(searcher.getReader().getMetadata(entry.getKey()).getDocNo()))
+                .append(", \"id\": ").append(entry.getKey())
+                .append(", \"score\": ").append(entry.getValue())
+                .append("}");
+        }
+        json.append("]}");
+        sendJson(exchange, 200, json.toString());
+    }
+
+    // GET /boolean?q=<query>, every query term has to appear in the document
+    private static void handleBoolean(HttpExchange exchange, Searcher searcher) throws IOException {
+        Map<String, String> params = parseQueryString(exchange);
+        String query = params.get("q");
+        if (query == null) {
+            sendJson(exchange, 400, "{\"error\": \"missing q parameter\"}");
+            return;
+        }
+
+        List<Integer> docIds = searcher.booleanAND(Searcher.splitQueryIntoTokens(query));
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"query\": ").append(quote(query))
+            .append(", \"count\": ").append(docIds.size())
+            .append(", \"results\": [");
+        for (int i = 0; i < docIds.size(); i++) {
+            if (i > 0) json.append(", ");
+            json.append(quote(searcher.getReader().getMetadata(docIds.get(i)).getDocNo()));
+        }
+        json.append("]}");
+        sendJson(exchange, 200, json.toString());
+    }
+
+    // GET /doc?docno=<docno> or /doc?id=<internal id>
+    private static void handleDoc(HttpExchange exchange, Searcher searcher) throws IOException {
+        Map<String, String> params = parseQueryString(exchange);
+        String docNo = params.get("docno");
+        if (docNo == null && params.containsKey("id")) {
+            try {
+                DocumentMetadata metadata = searcher.getReader().getMetadata(Integer.parseInt(params.get("id")));
+                docNo = metadata == null ? null : metadata.getDocNo();
+            } catch (NumberFormatException e) {
+                sendJson(exchange, 400, "{\"error\": \"id must be a number\"}");
+                return;
+            }
+            if (docNo == null) {
+                sendJson(exchange, 404, "{\"error\": \"No document with that ID\"}");
+                return;
+            }
+        }
+        if (docNo == null) {
+            sendJson(exchange, 400, "{\"error\": \"missing docno or id parameter\"}");
+            return;
+        }
+
+        Integer docId = searcher.getReader().getDocId(docNo);
+        if (docId == null) {
+            sendJson(exchange, 404, "{\"error\": \"No document with that docno\"}");
+            return;
+        }
+
+        String raw;
+        try {
+            raw = searcher.readDocument(docNo);
+        } catch (IOException e) {
+            sendJson(exchange, 500, "{\"error\": " + quote("Error reading document: " + e.getMessage()) + "}");
+            return;
+        }
+
+        String json = "{\"docno\": " + quote(docNo)
+            + ", \"id\": " + docId
+            + ", \"raw\": " + quote(raw) + "}";
+        sendJson(exchange, 200, json);
+    }
+
+    private static Map<String, String> parseQueryString(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            String[] parts = pair.split("=", 2);
+            String key = URLDecoder.decode(parts[0], StandardCharsets.UTF_8);
+            String value = parts.length == 2 ? URLDecoder.decode(parts[1], StandardCharsets.UTF_8) : "";
+            params.put(key, value);
+        }
+        return params;
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append("\"").toString();
+    }
+}
+
+// Everything loaded from the index directory. All fields are final and the maps are never
+// written after open() returns, so one reader can be shared by any number of request threads
+class IndexReader {
+    private final Map<Integer, List<DocIdCountPair>> invertedIndex;
+    private final Map<Integer, DocumentMetadata> documentMetadata;
+    private final Map<String, Integer> lexicon;
+    private final Map<Integer, Integer> docLengths;
+    private final Map<String, String> docNoToPath;
+    private final Map<String, Integer> docNoToId;
+    private final int totalDocs;
+    private final double avgDocLength;
+
+    private IndexReader(Map<Integer, List<DocIdCountPair>> invertedIndex, Map<Integer, DocumentMetadata> documentMetadata,
+            Map<String, Integer> lexicon, Map<Integer, Integer> docLengths, Map<String, String> docNoToPath) {
+        this.invertedIndex = Collections.unmodifiableMap(invertedIndex);
+        this.documentMetadata = Collections.unmodifiableMap(documentMetadata);
+        this.lexicon = Collections.unmodifiableMap(lexicon);
+        this.docLengths = Collections.unmodifiableMap(docLengths);
+        this.docNoToPath = Collections.unmodifiableMap(docNoToPath);
+        Map<String, Integer> docNoToId = new HashMap<>();
+        for (DocumentMetadata metadata : documentMetadata.values()) {
+            docNoToId.put(metadata.getDocNo(), metadata.getInternalId());
+        }
+        this.docNoToId = Collections.unmodifiableMap(docNoToId);
+        this.totalDocs = documentMetadata.size();
+        this.avgDocLength = loadAverageDocLengths(docLengths);
+    }
+
+    public static IndexReader open(String indexDirectory) throws IOException {
+        //read the index
+        Map<Integer, List<DocIdCountPair>> invertedIndex = loadInvertedIndex(indexDirectory);
+        //read the lexicon
+        Map<String, Integer> lexicon = loadLexicon(indexDirectory);
+        // read all metadata
+        Map<Integer, DocumentMetadata> documentMetadata = loadDocumentMetadata(indexDirectory);
+        // doc lengths
+        Map<Integer, Integer> docLengths = loadDocLengths(indexDirectory + "/doc-lengths/doc-lengths.txt");
+        // docno to raw document path
+        Map<String, String> docNoToPath = loadDocNoMapping(indexDirectory);
+
+        return new IndexReader(invertedIndex, documentMetadata, lexicon, docLengths, docNoToPath);
+    }
+
+    public Integer getTermId(String term) {
+        return lexicon.get(term);
+    }
+
+    public List<DocIdCountPair> getPostings(int termId) {
+        return invertedIndex.getOrDefault(termId, Collections.emptyList());
+    }
+
+    public DocumentMetadata getMetadata(int docId) {
+        return documentMetadata.get(docId);
+    }
+
+    public Integer getDocId(String docNo) {
+        return docNoToId.get(docNo);
+    }
+
+    public String getDocumentPath(String docNo) {
+        return docNoToPath.get(docNo);
+    }
+
+    public int getDocLength(int docId) {
+        return docLengths.get(docId);
+    }
+
+    public int getTotalDocs() {
+        return totalDocs;
+    }
+
+    public double getAvgDocLength() {
+        return avgDocLength;
+    }
+
+    private static double loadAverageDocLengths(Map<Integer, Integer> docLengths){
+        long totalLength = 0;
+        for(int docId : docLengths.keySet()){
+            totalLength += docLengths.get(docId);
+        }
+        return totalLength/(double) docLengths.size();
+    }
+
+    private static Map<Integer, Integer> loadDocLengths(String filePath) throws IOException {
+        Map<Integer, Integer> docLengths = new HashMap<>();
+        int internalId = 1;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    int length = Integer.parseInt(line.trim());
+                    docLengths.put(internalId, length);
+                    internalId++;
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid number format in document lengths file: " + line);
+                }
+            }
+        }
+
+        return docLengths;
+    }
+
+    private static Map<String, String> loadDocNoMapping(String indexPath) {
+        Map<String, String> mapping = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexPath + "/docnos.txt"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 2);
+                if (parts.length == 2) {
+                    mapping.put(parts[0], parts[1]);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading docnos file: " + e.getMessage());
+        }
+        return mapping;
+    }
+
+    private static Map<String, Integer> loadLexicon(String indexPath) {
+        Map<String, Integer> lexicon = new HashMap<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexPath + "/lexicon/lexicon.txt"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // older indexes separate the term and id with a tab, newer ones with a colon
+                String[] parts = line.trim().split("[:\\s]+");
+                if (parts.length == 2) {
+                    lexicon.put(parts[0], Integer.parseInt(parts[1]));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading lexicon file: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            System.err.println("Error parsing term ID: " + e.getMessage());
+        }
+
+        return lexicon;
+    }
+
+    private static Map<Integer, List<DocIdCountPair>> loadInvertedIndex(String indexPath) {
+        Map<Integer, List<DocIdCountPair>> index = new HashMap<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexPath + "/invertedIndex/invertedIndex.txt"))) {
+            String line;
+            Integer currentTermId = null;
+
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+
+                if (line.startsWith("Term ID:")) {
+                    currentTermId = Integer.parseInt(line.split(":")[1].trim());
+                    index.put(currentTermId, new ArrayList<>());
+                } else if (line.startsWith("DocID:") && currentTermId != null) {
+                    String[] parts = line.split(",");
+                    Integer docId = Integer.parseInt(parts[0].split(":")[1].trim());
+                    Integer count = Integer.parseInt(parts[1].split(":")[1].trim());
+
+                    index.get(currentTermId).add(new DocIdCountPair(docId, count));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading inverted index file: " + e.getMessage());
+        }
+
+        return index;
+    }
+
+    private static Map<Integer, DocumentMetadata> loadDocumentMetadata(String indexPath) {
+        Map<Integer, DocumentMetadata> metadataMap = new HashMap<>();
+
+        File dir = new File(indexPath + "/metadata");
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".txt"));
+
+        if (files != null) {
+            int internalId = -1;
+            for (File file : files) {
+                try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                    String line;
+                    String docNo = "";
+                    String date = "";
+                    String headline = "";
+
+                    while ((line = reader.readLine()) != null) {
+                        line = line.trim();
+                        String[] parts = line.split(" ");
+                        for (int i = 0; i < parts.length; i++) {
+                            switch (parts[i]) {
+                                case "docno:":
+                                    docNo = parts[++i];
+                                    break;
+                                case "id:":
+                                    internalId = Integer.parseInt(parts[++i]);
+                                    break;
+                            }
+                        }
+                    }
+                    metadataMap.put(internalId, new DocumentMetadata(docNo, internalId, date, headline));
+                } catch (IOException e) {
+                    System.err.println("Error reading metadata file: " + e.getMessage());
+                } catch (NumberFormatException e) {
+                    System.err.println("Error parsing internal ID: " + e.getMessage());
+                }
+            }
+        } else {
+            System.err.println("No metadata files found in the specified directory.");
+        }
+
+        return metadataMap;
+    }
+
+}
+
+// Query operations over a shared IndexReader. A searcher keeps no state between calls,
+// it's made per request and everything a query needs lives on that request's stack
+class Searcher {
+    private final IndexReader reader;
+
+    public Searcher(IndexReader reader) {
+        this.reader = reader;
+    }
+
+    public IndexReader getReader() {
+        return reader;
+    }
+
+    public List<Map.Entry<Integer, Double>> rankBM25(List<String> queryTokens, int k) {
+        Map<Integer, Double> scores = calculateBM25(queryTokens);
+
+        return scores.entrySet().stream()
+            .sorted((a, b) -> {
+                int cmp = Double.compare(b.getValue(), a.getValue());
+                if (cmp != 0) return cmp;
+                // Tie-break by docNo lexicographically
+                return reader.getMetadata(a.getKey()).getDocNo()
+                        .compareTo(reader.getMetadata(b.getKey()).getDocNo());
+            })
+            .limit(k)
+            .collect(Collectors.toList());
+    }
+
+    private Map<Integer, Double> calculateBM25(List<String> queryTokens){
+        Map<Integer, Double> scores = new HashMap<>();
+        double k1 = 1.2;
+        double b = 0.75;
+
+        for (String term : queryTokens) {
+            Integer termID = reader.getTermId(term);
+            if (termID == null) continue; // Skip terms not in the lexicon
+
+            List<DocIdCountPair> postingsList = reader.getPostings(termID);
+            int n_t = postingsList.size();
+            double idf = Math.log((reader.getTotalDocs() - n_t + 0.5) / (n_t + 0.5));
+
+            for (DocIdCountPair pair : postingsList) {
+                int docID = pair.getDocId();
+                int f_td = pair.getCount();
+                int docLength = reader.getDocLength(docID);
+
+                double bm25Score = idf * ((f_td) / (f_td + (k1 * (1 - b + b * (docLength / reader.getAvgDocLength())))));
+                scores.put(docID, scores.getOrDefault(docID, 0.0) + bm25Score);
+            }
+        }
+
+        return scores;
+    }
+
+    // docIds of the documents containing every query term, in docId order
+    public List<Integer> booleanAND(List<String> queryTokens) {
+        List<Integer> result = null;
+
+        for (String word : queryTokens) {
+            Integer termId = reader.getTermId(word);
+            List<DocIdCountPair> postingsList = termId == null ? Collections.emptyList() : reader.getPostings(termId);
+            if (postingsList.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            List<Integer> docIds = new ArrayList<>();
+            if (result == null) {
+                for (DocIdCountPair pair : postingsList) {
+                    docIds.add(pair.getDocId());
+                }
+            } else {
+                // both lists are sorted by docId, so they can be merged
+                int i = 0, j = 0;
+                while (i < result.size() && j < postingsList.size()) {
+                    int a = result.get(i);
+                    int b = postingsList.get(j).getDocId();
+                    if (a == b) {
+                        docIds.add(a);
+                        i++;
+                        j++;
+                    } else if (a < b) {
+                        i++;
+                    } else {
+                        j++;
+                    }
+                }
+            }
+            result = docIds;
+
+            if (result.isEmpty()) {
+                return result;
+            }
+        }
+
+        return result != null ? result : Collections.emptyList();
+    }
+
+    public String readDocument(String docNo) throws IOException {
+        String path = reader.getDocumentPath(docNo);
+        if (path == null) {
+            throw new IOException("No document with that docno");
+        }
+        return new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+    }
+
+    public static List<String> splitQueryIntoTokens(String query) {
+        List<String> tokens = new ArrayList<>();
+        query = query.toLowerCase();
+
+        int start = 0;
+        int i;
+
+        for (i = 0; i < query.length(); ++i) {
+            char c = query.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                if (start != i) {
+                    String token = query.substring(start, i);
+                    tokens.add(token);
+                }
+                start = i + 1;
+            }
+        }
+
+        if (start != i) {
+            tokens.add(query.substring(start, i));
+        }
+
+        return tokens;
+    }
+}
+
+
+class DocIdCountPair {
+    private int docId;
+    private int count;
+
+    public DocIdCountPair() {
+        this.docId = 0;
+        this.count = 0;
+    }
+
+    public DocIdCountPair(int docId, int count) {
+        this.docId = docId;
+        this.count = count;
+    }
+
+    public int getDocId() {
+        return docId;
+    }
+
+    public void setDocId(int docId) {
+        this.docId = docId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+}
+
+class DocumentMetadata {
+    private String docNo;
+    private int internalId;
+    private String date;
+    private String headline;
+
+    public DocumentMetadata(String docNo, int internalId, String date, String headline) {
+        this.docNo = docNo;
+        this.internalId = internalId;
+        this.date = date;
+        this.headline = headline;
+    }
+
+    public String getDocNo() {
+        return docNo;
+    }
+
+    public int getInternalId() {
+        return internalId;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public String getHeadline() {
+        return headline;
+    }
+}